@@ -0,0 +1,138 @@
+package org.reactivecouchbase.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Number and text writers targeting an `Appendable` digit by digit, without the intermediate strings of
+ * `String.valueOf` or `Long.toString`.
+ */
+final class Appendables {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+    };
+    // above that, scaled fractions don't fit in a long anymore
+    private static final double MAX_FIXED = 1e15;
+
+    private Appendables() {
+    }
+
+    /**
+     * Appendable writing each char as one byte in `buffer`. Chars above 127 are written as '?', callers are
+     * expected to escape them first. Throws `BufferOverflowException` when the buffer is full.
+     */
+    static Appendable of(ByteBuffer buffer) {
+        return new ByteBufferAppendable(buffer);
+    }
+
+    static void appendLong(Appendable out, long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            out.append("-9223372036854775808");
+            return;
+        }
+        if (value < 0L) {
+            out.append('-');
+            value = -value;
+        }
+        long divisor = 1L;
+        while (divisor <= value / 10L) {
+            divisor *= 10L;
+        }
+        while (divisor > 0L) {
+            out.append((char) ('0' + (value / divisor) % 10L));
+            divisor /= 10L;
+        }
+    }
+
+    /**
+     * Appends `value` with at most `fractionDigits` digits after the dot, trailing zeros removed.
+     * Non finite values are written as `NaN`, `+Inf` and `-Inf`.
+     */
+    static void appendDecimal(Appendable out, double value, int fractionDigits) throws IOException {
+        Invariant.invariant(fractionDigits >= 0 && fractionDigits < POWERS_OF_TEN.length, "Fraction digits should be between 0 and 9");
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+            return;
+        }
+        if (Double.isInfinite(value)) {
+            out.append(value > 0.0 ? "+Inf" : "-Inf");
+            return;
+        }
+        double abs = Math.abs(value);
+        if (abs * POWERS_OF_TEN[fractionDigits] >= MAX_FIXED) {
+            // rare enough to afford the allocation
+            out.append(Double.toString(value));
+            return;
+        }
+        long scale = POWERS_OF_TEN[fractionDigits];
+        long scaled = Math.round(abs * scale);
+        if (value < 0.0 && scaled != 0L) {
+            out.append('-');
+        }
+        appendLong(out, scaled / scale);
+        long fraction = scaled % scale;
+        if (fraction == 0L) {
+            return;
+        }
+        int digits = fractionDigits;
+        while (fraction % 10L == 0L) {
+            fraction /= 10L;
+            digits--;
+        }
+        out.append('.');
+        for (int i = digits - 1; i >= 0; i--) {
+            out.append((char) ('0' + (fraction / POWERS_OF_TEN[i]) % 10L));
+        }
+    }
+
+    /**
+     * Appends the content of a JSON string literal (without the quotes), non ASCII chars are escaped
+     */
+    static void appendJsonEscaped(Appendable out, CharSequence value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                out.append("\\u")
+                        .append(HEX[(c >> 12) & 0xF])
+                        .append(HEX[(c >> 8) & 0xF])
+                        .append(HEX[(c >> 4) & 0xF])
+                        .append(HEX[c & 0xF]);
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static final class ByteBufferAppendable implements Appendable {
+
+        private final ByteBuffer buffer;
+
+        private ByteBufferAppendable(ByteBuffer buffer) {
+            Invariant.checkNotNull(buffer);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            for (int i = start; i < end; i++) {
+                append(csq.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            buffer.put(c < 0x80 ? (byte) c : (byte) '?');
+            return this;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package org.reactivecouchbase.common;
+
+import org.reactivecouchbase.functional.Try;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker for calls returning `Try`.
+ * <p/>
+ * Outcomes are counted in rolling windows. The breaker opens when, over the window, the failure ratio or the
+ * slow call ratio reaches its threshold, then rejects calls immediately with a shared stackless `OpenException`.
+ * After `openDuration` it lets `halfOpenCalls` trial calls through : it closes again if they all succeed in time
+ * and opens back on the first bad one.
+ * <p/>
+ * The state, the time it was entered and its trial counters are held by an immutable phase swapped by CAS. In the closed
+ * state a successful call costs one volatile read, two `nanoTime()` and one window increment ; the ratios
+ * are only computed after a failed or slow call.
+ * <p/>
+ * * CircuitBreaker breaker = CircuitBreaker.of(CircuitBreaker.Config.defaults().withFailureRate(0.3));
+ * * Try<User> user = breaker.call(() -> fetchUser(id));
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Returned as failure of the calls rejected while the breaker is open. Shared and stackless.
+     */
+    public static class OpenException extends FastRuntimeException {
+        private OpenException() {
+            super("Circuit breaker is open");
+        }
+    }
+
+    public static final OpenException OPEN_EXCEPTION = new OpenException();
+
+    public static class Config {
+
+        private static final Config DEFAULTS = new Config(0.5, 1.0, Duration.of(1L, TimeUnit.MINUTES), 20,
+                Duration.of(10L, TimeUnit.SECONDS), Duration.of(30L, TimeUnit.SECONDS), 5);
+
+        public final double failureRate;
+        public final double slowCallRate;
+        public final Duration slowCallDuration;
+        public final int minimumCalls;
+        public final Duration window;
+        public final Duration openDuration;
+        public final int halfOpenCalls;
+
+        private Config(double failureRate, double slowCallRate, Duration slowCallDuration, int minimumCalls,
+                       Duration window, Duration openDuration, int halfOpenCalls) {
+            Invariant.invariant(failureRate > 0.0 && failureRate <= 1.0, "Failure rate should be in ]0, 1]");
+            Invariant.invariant(slowCallRate > 0.0 && slowCallRate <= 1.0, "Slow call rate should be in ]0, 1]");
+            Invariant.checkNotNull(slowCallDuration);
+            Invariant.invariant(minimumCalls > 0, "Minimum calls should be positive");
+            Invariant.checkNotNull(window);
+            Invariant.checkNotNull(openDuration);
+            Invariant.invariant(halfOpenCalls > 0, "Half open calls should be positive");
+            this.failureRate = failureRate;
+            this.slowCallRate = slowCallRate;
+            this.slowCallDuration = slowCallDuration;
+            this.minimumCalls = minimumCalls;
+            this.window = window;
+            this.openDuration = openDuration;
+            this.halfOpenCalls = halfOpenCalls;
+        }
+
+        /**
+         * Opens at 50% of failures over 10 seconds (20 calls minimum) for 30 seconds, then tries 5 calls.
+         * Slow calls (over one minute) only open it when all the calls of the window are slow.
+         */
+        public static Config defaults() {
+            return DEFAULTS;
+        }
+
+        public Config withFailureRate(double failureRate) {
+            return new Config(failureRate, slowCallRate, slowCallDuration, minimumCalls, window, openDuration, halfOpenCalls);
+        }
+
+        /**
+         * Opens when at least `slowCallRate` of the calls take more than `slowCallDuration`
+         */
+        public Config withSlowCallRate(double slowCallRate, Duration slowCallDuration) {
+            return new Config(failureRate, slowCallRate, slowCallDuration, minimumCalls, window, openDuration, halfOpenCalls);
+        }
+
+        public Config withMinimumCalls(int minimumCalls) {
+            return new Config(failureRate, slowCallRate, slowCallDuration, minimumCalls, window, openDuration, halfOpenCalls);
+        }
+
+        public Config withWindow(Duration window) {
+            return new Config(failureRate, slowCallRate, slowCallDuration, minimumCalls, window, openDuration, halfOpenCalls);
+        }
+
+        public Config withOpenDuration(Duration openDuration) {
+            return new Config(failureRate, slowCallRate, slowCallDuration, minimumCalls, window, openDuration, halfOpenCalls);
+        }
+
+        public Config withHalfOpenCalls(int halfOpenCalls) {
+            return new Config(failureRate, slowCallRate, slowCallDuration, minimumCalls, window, openDuration, halfOpenCalls);
+        }
+
+        @Override
+        public String toString() {
+            return "Config { " +
+                    "failureRate = " + failureRate +
+                    ", slowCallRate = " + slowCallRate +
+                    ", slowCallDuration = " + slowCallDuration +
+                    ", minimumCalls = " + minimumCalls +
+                    ", window = " + window +
+                    ", openDuration = " + openDuration +
+                    ", halfOpenCalls = " + halfOpenCalls +
+                    " }";
+        }
+    }
+
+    /**
+     * State entered at `since` (clock millis). Each transition creates a new phase and half open trials count their
+     * results in the phase that admitted them, so a trial finishing after its cycle ended can't leak into the next one.
+     */
+    private static final class Phase {
+        final State state;
+        final long since;
+        final AtomicInteger trialCalls = new AtomicInteger(0);
+        final AtomicInteger trialSuccesses = new AtomicInteger(0);
+
+        Phase(State state, long since) {
+            this.state = state;
+            this.since = since;
+        }
+    }
+
+    private final Config config;
+    private final Clock clock;
+    private final long slowCallNanos;
+    private final long openMillis;
+    private final RollingMeasuredRate calls;
+    private final RollingMeasuredRate failures;
+    private final RollingMeasuredRate slowCalls;
+    private final AtomicReference<Phase> phase;
+    private final AtomicLong rejections = new AtomicLong(0L);
+
+    private CircuitBreaker(Config config, Clock clock) {
+        Invariant.checkNotNull(config);
+        Invariant.checkNotNull(clock);
+        this.config = config;
+        this.clock = clock;
+        this.slowCallNanos = config.slowCallDuration.toNanos();
+        this.openMillis = config.openDuration.toMillis();
+        this.calls = RollingMeasuredRate.of(config.window, 10, clock);
+        this.failures = RollingMeasuredRate.of(config.window, 10, clock);
+        this.slowCalls = RollingMeasuredRate.of(config.window, 10, clock);
+        this.phase = new AtomicReference<>(new Phase(State.CLOSED, clock.currentTimeMillis()));
+    }
+
+    public static CircuitBreaker of() {
+        return new CircuitBreaker(Config.defaults(), Clock.cached());
+    }
+
+    public static CircuitBreaker of(Config config) {
+        return new CircuitBreaker(config, Clock.cached());
+    }
+
+    public static CircuitBreaker of(Config config, Clock clock) {
+        return new CircuitBreaker(config, clock);
+    }
+
+    /**
+     * Runs `call` if the breaker lets it through, otherwise returns a failure holding `OPEN_EXCEPTION`.
+     * Exceptions thrown by `call` are returned as failures and counted as such. Errors are counted as failures
+     * and rethrown.
+     */
+    public <T> Try<T> call(Supplier<Try<T>> call) {
+        Invariant.checkNotNull(call);
+        Phase admitted = acquire();
+        if (admitted == null) {
+            rejections.incrementAndGet();
+            return Try.failure(OPEN_EXCEPTION);
+        }
+        long start = clock.nanoTime();
+        Try<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = Try.failure(e);
+        } catch (Throwable e) {
+            // releases the half open trial slot taken by this call
+            onResult(admitted, true, clock.nanoTime() - start);
+            throw e;
+        }
+        boolean failed = result == null || result.isFailure();
+        onResult(admitted, failed, clock.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Phase the call goes through in, or null when it is rejected
+     */
+    private Phase acquire() {
+        while (true) {
+            Phase current = phase.get();
+            if (current.state == State.CLOSED) {
+                return current;
+            }
+            if (current.state == State.OPEN) {
+                long now = clock.currentTimeMillis();
+                if (now - current.since < openMillis) {
+                    return null;
+                }
+                // a fresh phase comes with fresh trial counters
+                phase.compareAndSet(current, new Phase(State.HALF_OPEN, now));
+                continue;
+            }
+            if (current.trialCalls.incrementAndGet() <= config.halfOpenCalls) {
+                return current;
+            }
+            return null;
+        }
+    }
+
+    private void onResult(Phase admitted, boolean failed, long elapsedNanos) {
+        boolean slow = elapsedNanos > slowCallNanos;
+        if (admitted.state == State.CLOSED) {
+            calls.increment();
+            if (failed) {
+                failures.increment();
+            }
+            if (slow) {
+                slowCalls.increment();
+            }
+            if ((failed || slow) && shouldOpen()) {
+                transition(admitted, State.OPEN);
+            }
+        } else if (phase.get() != admitted) {
+            // trial admitted in a half open cycle that already ended
+            return;
+        } else if (failed || slow) {
+            transition(admitted, State.OPEN);
+        } else if (admitted.trialSuccesses.incrementAndGet() >= config.halfOpenCalls) {
+            transition(admitted, State.CLOSED);
+        }
+    }
+
+    private boolean shouldOpen() {
+        long count = calls.getCurrentCount();
+        if (count < config.minimumCalls) {
+            return false;
+        }
+        return failures.getCurrentCount() >= config.failureRate * count
+                || slowCalls.getCurrentCount() >= config.slowCallRate * count;
+    }
+
+    private void transition(Phase from, State to) {
+        if (phase.get() != from) {
+            return;
+        }
+        if (to == State.CLOSED) {
+            calls.reset();
+            failures.reset();
+            slowCalls.reset();
+        }
+        phase.compareAndSet(from, new Phase(to, clock.currentTimeMillis()));
+    }
+
+    /**
+     * Forces the breaker back to the closed state with empty windows
+     */
+    public void reset() {
+        calls.reset();
+        failures.reset();
+        slowCalls.reset();
+        phase.set(new Phase(State.CLOSED, clock.currentTimeMillis()));
+    }
+
+    public final State state() {
+        Phase current = phase.get();
+        if (current.state == State.OPEN && clock.currentTimeMillis() - current.since >= openMillis) {
+            return State.HALF_OPEN;
+        }
+        return current.state;
+    }
+
+    /**
+     * Ratio of failed calls in the current window, between 0 and 1
+     */
+    public final double failureRate() {
+        long count = calls.getCurrentCount();
+        return count == 0L ? 0.0 : (double) failures.getCurrentCount() / count;
+    }
+
+    /**
+     * Ratio of slow calls in the current window, between 0 and 1
+     */
+    public final double slowCallRate() {
+        long count = calls.getCurrentCount();
+        return count == 0L ? 0.0 : (double) slowCalls.getCurrentCount() / count;
+    }
+
+    /**
+     * Number of calls rejected since creation
+     */
+    public final long rejections() {
+        return rejections.get();
+    }
+
+    public final Config config() {
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker { " +
+                "state = " + state() +
+                ", failureRate = " + failureRate() +
+                ", slowCallRate = " + slowCallRate() +
+                ", rejections = " + rejections() +
+                " }";
+    }
+}
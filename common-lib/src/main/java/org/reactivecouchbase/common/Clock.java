@@ -0,0 +1,84 @@
+package org.reactivecouchbase.common;
+
+/**
+ * Source of wall clock time and of monotonic time.
+ * <p/>
+ * Time dependent classes read the time through a `Clock` so hot paths can use the cached clock and tests can
+ * drive time by hand with a `ManualClock`.
+ * <p/>
+ * * Clock.system()
+ * * Clock.cached() // volatile read of a millisecond refreshed by a daemon thread
+ * * MeasuredRate.of(Duration.of("1 s"), Clock.cached())
+ */
+public abstract class Clock {
+
+    private static final Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public String toString() {
+            return "Clock.system()";
+        }
+    };
+
+    private static final Clock CACHED = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return CoarseClock.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public String toString() {
+            return "Clock.cached()";
+        }
+    };
+
+    /**
+     * Milliseconds since the unix epoch
+     */
+    public abstract long currentTimeMillis();
+
+    /**
+     * Monotonic time in nanoseconds from an arbitrary origin, only meaningful as a difference
+     */
+    public abstract long nanoTime();
+
+    /**
+     * `System.currentTimeMillis()` and `System.nanoTime()`
+     */
+    public static Clock system() {
+        return SYSTEM;
+    }
+
+    /**
+     * `currentTimeMillis()` is read from a volatile field refreshed every millisecond by a single daemon thread
+     * and may lag by about a millisecond, `nanoTime()` is `System.nanoTime()`
+     */
+    public static Clock cached() {
+        return CACHED;
+    }
+
+    /**
+     * Clock only moving when told to, starting at the current time
+     */
+    public static ManualClock manual() {
+        return new ManualClock(System.currentTimeMillis());
+    }
+
+    public static ManualClock manual(long currentTimeMillis) {
+        return new ManualClock(currentTimeMillis);
+    }
+}
@@ -0,0 +1,34 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Millisecond clock refreshed by a single background daemon thread.
+ * <p/>
+ * Reading it is a volatile read instead of a `System.currentTimeMillis()` call, which matters for counters
+ * incremented millions of times per second. The value may lag the real clock by about a millisecond.
+ */
+public class CoarseClock {
+
+    private static final long TICK_NANOS = 1000000L;
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = System.currentTimeMillis();
+                LockSupport.parkNanos(TICK_NANOS);
+            }
+        }, "reactivecouchbase-coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
@@ -0,0 +1,435 @@
+package org.reactivecouchbase.common;
+
+import org.reactivecouchbase.functional.Option;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive limit on the number of calls in flight.
+ * <p/>
+ * Each permit measures the round trip time of its call and, once released, feeds it to an `Algorithm` that
+ * raises or lowers the limit : `aimd` adds one on success and cuts the limit on drops or timeouts, `gradient`
+ * follows the ratio between the long term RTT and the latest one so the limit shrinks as soon as a queue builds
+ * up in the backend.
+ * <p/>
+ * Taking a permit is a CAS on the in-flight counter and releasing one updates the limit with a CAS, no lock is
+ * taken. Callers over the limit are either rejected (`tryAcquire`) or queued (`acquireAsync`) : no thread is ever
+ * blocked, queued futures are completed by the thread releasing a permit.
+ * <p/>
+ * * ConcurrencyLimiter limiter = ConcurrencyLimiter.of(ConcurrencyLimiter.gradient(10, 1, 200), 100);
+ * * limiter.acquireAsync().thenCompose(permit -> call().whenComplete((r, e) -> permit.release(e == null)))
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Failure of the futures returned by `acquireAsync` when the wait queue is full. Shared and stackless.
+     */
+    public static class LimitExceededException extends FastRuntimeException {
+        private LimitExceededException() {
+            super("Concurrency limit exceeded");
+        }
+    }
+
+    public static final LimitExceededException LIMIT_EXCEEDED = new LimitExceededException();
+
+    /**
+     * Computes the new limit after each sample. The instances returned by the factories only hold settings, each
+     * limiter works on its own copy so the state of an algorithm is never shared between limiters.
+     */
+    public static abstract class Algorithm {
+
+        final int initialLimit;
+        final int minLimit;
+        final int maxLimit;
+
+        Algorithm(int initialLimit, int minLimit, int maxLimit) {
+            Invariant.invariant(minLimit > 0, "Min limit should be positive");
+            Invariant.invariant(minLimit <= initialLimit && initialLimit <= maxLimit, "Initial limit should be between min and max limits");
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+        }
+
+        /**
+         * Algorithm with the same settings and a fresh state
+         */
+        abstract Algorithm newInstance();
+
+        /**
+         * Records a sample in the state of this instance, called once per sample before `update`
+         */
+        void observe(long rttNanos, boolean dropped) {
+        }
+
+        /**
+         * New limit after a sample. Retried when samples race, so it must not change any state.
+         */
+        abstract double update(double limit, long rttNanos, int inFlight, boolean dropped);
+
+        int clamp(double limit) {
+            return (int) Math.max(minLimit, Math.min(maxLimit, limit));
+        }
+    }
+
+    private static class Aimd extends Algorithm {
+
+        private final double backoffRatio;
+        private final long timeoutNanos;
+
+        Aimd(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long timeoutNanos) {
+            super(initialLimit, minLimit, maxLimit);
+            Invariant.invariant(backoffRatio > 0.0 && backoffRatio < 1.0, "Backoff ratio should be in ]0, 1[");
+            this.backoffRatio = backoffRatio;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        Algorithm newInstance() {
+            // stateless
+            return this;
+        }
+
+        @Override
+        double update(double limit, long rttNanos, int inFlight, boolean dropped) {
+            if (dropped || rttNanos > timeoutNanos) {
+                return limit * backoffRatio;
+            }
+            // only grow when the limit is actually used
+            if (inFlight * 2 >= limit) {
+                return limit + 1.0;
+            }
+            return limit;
+        }
+    }
+
+    private static class Gradient extends Algorithm {
+
+        private final double smoothing;
+        private final double tolerance;
+        private final int longWindow;
+        private final long timeoutNanos;
+        private final double longRttDecay;
+        // bits of the long term RTT, a double
+        private final AtomicLong longRtt = new AtomicLong(Double.doubleToRawLongBits(0.0));
+
+        Gradient(int initialLimit, int minLimit, int maxLimit, double smoothing, double tolerance, int longWindow, long timeoutNanos) {
+            super(initialLimit, minLimit, maxLimit);
+            Invariant.invariant(smoothing > 0.0 && smoothing <= 1.0, "Smoothing should be in ]0, 1]");
+            Invariant.invariant(tolerance >= 1.0, "Tolerance should be at least 1");
+            Invariant.invariant(longWindow > 0, "Long window should be positive");
+            Invariant.invariant(timeoutNanos > 0L, "Timeout should be positive");
+            this.smoothing = smoothing;
+            this.tolerance = tolerance;
+            this.longWindow = longWindow;
+            this.timeoutNanos = timeoutNanos;
+            this.longRttDecay = 2.0 / (longWindow + 1.0);
+        }
+
+        @Override
+        Algorithm newInstance() {
+            return new Gradient(initialLimit, minLimit, maxLimit, smoothing, tolerance, longWindow, timeoutNanos);
+        }
+
+        @Override
+        void observe(long rttNanos, boolean dropped) {
+            // drops and timeouts would raise the baseline right when the limit should shrink
+            if (dropped || rttNanos > timeoutNanos) {
+                return;
+            }
+            while (true) {
+                long bits = longRtt.get();
+                double current = Double.longBitsToDouble(bits);
+                double next = current == 0.0 ? rttNanos : current + (rttNanos - current) * longRttDecay;
+                if (longRtt.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        double update(double limit, long rttNanos, int inFlight, boolean dropped) {
+            if (dropped || rttNanos > timeoutNanos) {
+                return limit * 0.5;
+            }
+            // an app limited caller says nothing about the backend capacity
+            if (inFlight * 2 < limit) {
+                return limit;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, tolerance * Double.longBitsToDouble(longRtt.get()) / Math.max(rttNanos, 1L)));
+            double queueSize = Math.sqrt(limit);
+            double target = limit * gradient + queueSize;
+            return limit * (1.0 - smoothing) + target * smoothing;
+        }
+    }
+
+    /**
+     * Additive increase, multiplicative decrease : +1 per successful sample, `* 0.9` on drops or samples over `timeout`
+     */
+    public static Algorithm aimd(int initialLimit, int minLimit, int maxLimit, Duration timeout) {
+        return new Aimd(initialLimit, minLimit, maxLimit, 0.9, timeout.toNanos());
+    }
+
+    public static Algorithm aimd(int initialLimit, int minLimit, int maxLimit, Duration timeout, double backoffRatio) {
+        return new Aimd(initialLimit, minLimit, maxLimit, backoffRatio, timeout.toNanos());
+    }
+
+    /**
+     * Gradient of the long term RTT (averaged over about 600 samples) over the latest one, tolerating a RTT up
+     * to 2 times the long term one before shrinking. Drops halve the limit and are left out of the long term RTT.
+     */
+    public static Algorithm gradient(int initialLimit, int minLimit, int maxLimit) {
+        return new Gradient(initialLimit, minLimit, maxLimit, 0.2, 2.0, 600, Long.MAX_VALUE);
+    }
+
+    public static Algorithm gradient(int initialLimit, int minLimit, int maxLimit, double smoothing, double tolerance, int longWindow) {
+        return new Gradient(initialLimit, minLimit, maxLimit, smoothing, tolerance, longWindow, Long.MAX_VALUE);
+    }
+
+    /**
+     * Gradient algorithm treating the samples over `timeout` as drops
+     */
+    public static Algorithm gradient(int initialLimit, int minLimit, int maxLimit, double smoothing, double tolerance, int longWindow, Duration timeout) {
+        Invariant.checkNotNull(timeout);
+        return new Gradient(initialLimit, minLimit, maxLimit, smoothing, tolerance, longWindow, timeout.toNanos());
+    }
+
+    /**
+     * Right to run one call. Exactly one of `onSuccess`, `onDropped` or `onIgnore` should be called when it ends.
+     */
+    public class Permit {
+
+        private final long start = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit() {}
+
+        /**
+         * The call completed, its round trip time is used to adjust the limit
+         */
+        public void onSuccess() {
+            if (released.compareAndSet(false, true)) {
+                onRelease(System.nanoTime() - start, false, true);
+            }
+        }
+
+        /**
+         * The call failed because of the backend (timeout, rejection), the limit is lowered
+         */
+        public void onDropped() {
+            if (released.compareAndSet(false, true)) {
+                onRelease(System.nanoTime() - start, true, true);
+            }
+        }
+
+        /**
+         * The call ended without saying anything about the backend (validation error, ...), the limit is kept
+         */
+        public void onIgnore() {
+            if (released.compareAndSet(false, true)) {
+                onRelease(0L, false, false);
+            }
+        }
+
+        public void release(boolean success) {
+            if (success) {
+                onSuccess();
+            } else {
+                onDropped();
+            }
+        }
+
+        public Duration elapsed() {
+            return Duration.of(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final int maxQueued;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final ConcurrentLinkedQueue<CompletableFuture<Permit>> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicLong rejections = new AtomicLong(0L);
+    private final AtomicLong minRtt = new AtomicLong(Long.MAX_VALUE);
+    // bits of the limit before rounding, a double between the min and max limits
+    private final AtomicLong exactLimit;
+    // bits of the smoothed RTT, a double
+    private final AtomicLong smoothedRtt = new AtomicLong(Double.doubleToRawLongBits(0.0));
+    private volatile long lastRtt = 0L;
+
+    private ConcurrencyLimiter(Algorithm algorithm, int maxQueued) {
+        Invariant.checkNotNull(algorithm);
+        Invariant.invariant(maxQueued >= 0, "Max queued should be positive");
+        this.algorithm = algorithm.newInstance();
+        this.maxQueued = maxQueued;
+        this.exactLimit = new AtomicLong(Double.doubleToRawLongBits(algorithm.initialLimit));
+    }
+
+    /**
+     * Limiter rejecting the calls over the limit
+     */
+    public static ConcurrencyLimiter of(Algorithm algorithm) {
+        return new ConcurrencyLimiter(algorithm, 0);
+    }
+
+    /**
+     * Limiter queueing up to `maxQueued` calls over the limit in `acquireAsync`
+     */
+    public static ConcurrencyLimiter of(Algorithm algorithm, int maxQueued) {
+        return new ConcurrencyLimiter(algorithm, maxQueued);
+    }
+
+    /**
+     * Takes a permit if the limit is not reached, never waits
+     */
+    public Option<Permit> tryAcquire() {
+        if (take()) {
+            return Option.some(new Permit());
+        }
+        rejections.incrementAndGet();
+        return Option.none();
+    }
+
+    /**
+     * Returns a permit now if possible, otherwise queues the caller. The future fails with `LIMIT_EXCEEDED` when
+     * the queue is full. It is completed by the thread releasing a permit, use the async variants of the
+     * dependent stages to move heavy work elsewhere.
+     */
+    public CompletableFuture<Permit> acquireAsync() {
+        if (take()) {
+            return CompletableFuture.completedFuture(new Permit());
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            rejections.incrementAndGet();
+            CompletableFuture<Permit> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(LIMIT_EXCEEDED);
+            return rejected;
+        }
+        CompletableFuture<Permit> future = new CompletableFuture<>();
+        waiters.offer(future);
+        // a permit may have been released between the failed take and the offer
+        drain();
+        return future;
+    }
+
+    private boolean take() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void onRelease(long rttNanos, boolean dropped, boolean sample) {
+        if (sample) {
+            onSample(rttNanos, dropped);
+        }
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    private void onSample(long rttNanos, boolean dropped) {
+        if (!dropped) {
+            lastRtt = rttNanos;
+            long min = minRtt.get();
+            while (rttNanos < min && !minRtt.compareAndSet(min, rttNanos)) {
+                min = minRtt.get();
+            }
+        }
+        if (!dropped) {
+            while (true) {
+                long bits = smoothedRtt.get();
+                double smoothed = Double.longBitsToDouble(bits);
+                double next = smoothed == 0.0 ? rttNanos : smoothed + (rttNanos - smoothed) * 0.1;
+                if (smoothedRtt.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                    break;
+                }
+            }
+        }
+        algorithm.observe(rttNanos, dropped);
+        while (true) {
+            long bits = exactLimit.get();
+            double next = Math.max(algorithm.minLimit, Math.min(algorithm.maxLimit,
+                    algorithm.update(Double.longBitsToDouble(bits), rttNanos, inFlight.get(), dropped)));
+            if (exactLimit.compareAndSet(bits, Double.doubleToRawLongBits(next))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Hands free permits to queued callers
+     */
+    private void drain() {
+        while (!waiters.isEmpty() && take()) {
+            CompletableFuture<Permit> waiter = waiters.poll();
+            if (waiter == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            queued.decrementAndGet();
+            if (!waiter.complete(new Permit())) {
+                // cancelled meanwhile
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    public final int limit() {
+        return algorithm.clamp(Double.longBitsToDouble(exactLimit.get()));
+    }
+
+    public final int inFlight() {
+        return inFlight.get();
+    }
+
+    public final int queued() {
+        return queued.get();
+    }
+
+    /**
+     * Number of permits refused, by `tryAcquire` or because the queue was full
+     */
+    public final long rejections() {
+        return rejections.get();
+    }
+
+    /**
+     * Round trip time of the last successful call
+     */
+    public final Duration lastRtt() {
+        return Duration.of(lastRtt, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Exponential moving average of the round trip times of the successful calls
+     */
+    public final Duration smoothedRtt() {
+        return Duration.of((long) Double.longBitsToDouble(smoothedRtt.get()), TimeUnit.NANOSECONDS);
+    }
+
+    public final Duration minRtt() {
+        long min = minRtt.get();
+        return Duration.of(min == Long.MAX_VALUE ? 0L : min, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrencyLimiter { " +
+                "limit = " + limit() +
+                ", inFlight = " + inFlight.get() +
+                ", queued = " + queued.get() +
+                ", smoothedRtt = " + smoothedRtt().toNanos() + " ns" +
+                ", minRtt = " + minRtt().toNanos() + " ns" +
+                " }";
+    }
+}
@@ -0,0 +1,172 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Fixed point in monotonic time by which some work should be done.
+ * <p/>
+ * Unlike a `Duration` timeout, a deadline doesn't restart at each layer : it is created once for a request and passed
+ * down, nested calls derive child deadlines that can only be earlier. Checking a deadline reads the clock and
+ * allocates nothing.
+ * <p/>
+ * * Deadline deadline = Deadline.of(Duration.of("500 ms"));
+ * * deadline.child(Duration.of("100 ms")).orTimeout(client.get(key))
+ * * deadline.supplyAsync(() -> compute(), executor) // dropped without running once expired
+ */
+public class Deadline implements Comparable<Deadline> {
+
+    /**
+     * Failure of the futures timed out by a deadline. Stackless, a new instance is created for each expiry so
+     * callers can add suppressed exceptions or causes without affecting other futures.
+     */
+    public static class ExpiredException extends TimeoutException {
+        private ExpiredException() {
+            super("Deadline exceeded");
+        }
+
+        @Override
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    // longer budgets are capped so the differences between instants never overflow, about 146 years
+    private static final long MAX_BUDGET_NANOS = Long.MAX_VALUE >> 1;
+
+    private final long deadlineNanos;
+    private final Clock clock;
+
+    private Deadline(long deadlineNanos, Clock clock) {
+        this.deadlineNanos = deadlineNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * Deadline `budget` from now on the system monotonic clock
+     */
+    public static Deadline of(Duration budget) {
+        return of(budget, Clock.system());
+    }
+
+    public static Deadline of(Duration budget, Clock clock) {
+        Invariant.checkNotNull(budget);
+        Invariant.checkNotNull(clock);
+        return new Deadline(clock.nanoTime() + budgetNanos(budget.toNanos()), clock);
+    }
+
+    private static long budgetNanos(long nanos) {
+        return Math.max(0L, Math.min(nanos, MAX_BUDGET_NANOS));
+    }
+
+    public final boolean isExpired() {
+        return deadlineNanos - clock.nanoTime() <= 0L;
+    }
+
+    /**
+     * Time left in nanoseconds, zero once expired
+     */
+    public final long remainingNanos() {
+        return Math.max(0L, deadlineNanos - clock.nanoTime());
+    }
+
+    public final Duration remaining() {
+        return new Duration(remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The earliest of the two deadlines
+     */
+    public final Deadline min(Deadline other) {
+        Invariant.checkNotNull(other);
+        return compareTo(other) <= 0 ? this : other;
+    }
+
+    /**
+     * Deadline `budget` from now, unless this one comes first. Returns this deadline in that case.
+     */
+    public final Deadline child(Duration budget) {
+        Invariant.checkNotNull(budget);
+        long childNanos = clock.nanoTime() + budgetNanos(budget.toNanos());
+        if (childNanos - deadlineNanos >= 0L) {
+            return this;
+        }
+        return new Deadline(childNanos, clock);
+    }
+
+    @Override
+    public final int compareTo(Deadline other) {
+        return Long.signum(deadlineNanos - other.deadlineNanos);
+    }
+
+    /**
+     * Fails `future` with an `ExpiredException` if it is not complete when the deadline is reached, at once if it is already
+     * reached, and returns it. Same as `CompletableFuture.orTimeout(remainingNanos(), NANOSECONDS)` from Java 9.
+     * The wait is scheduled on `Schedulers.timer()` and cancelled when the future completes first.
+     */
+    public final <T> CompletableFuture<T> orTimeout(CompletableFuture<T> future) {
+        Invariant.checkNotNull(future);
+        if (future.isDone()) {
+            return future;
+        }
+        long remaining = remainingNanos();
+        if (remaining == 0L) {
+            future.completeExceptionally(new ExpiredException());
+            return future;
+        }
+        try {
+            ScheduledFuture<?> timeout = Schedulers.timer().schedule(() -> future.completeExceptionally(new ExpiredException()), remaining, TimeUnit.NANOSECONDS);
+            future.whenComplete((result, error) -> timeout.cancel(false));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs `supplier` on `executor` under this deadline. Work is dropped, and the future failed with an `ExpiredException`,
+     * when the deadline is reached before it is submitted or before it leaves the executor queue.
+     */
+    public final <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier, Executor executor) {
+        Invariant.checkNotNull(supplier);
+        Invariant.checkNotNull(executor);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (isExpired()) {
+            future.completeExceptionally(new ExpiredException());
+            return future;
+        }
+        try {
+            executor.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                if (isExpired()) {
+                    future.completeExceptionally(new ExpiredException());
+                    return;
+                }
+                try {
+                    future.complete(supplier.get());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        return orTimeout(future);
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline { " +
+                "remaining = " + remaining().toHumanReadable() +
+                ", clock = " + clock +
+                " }";
+    }
+}
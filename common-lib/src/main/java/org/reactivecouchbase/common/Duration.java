@@ -1,32 +1,49 @@
 package org.reactivecouchbase.common;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Representation for a duration with support of human readable output
  * <p/>
+ * The value and its conversion to nanoseconds are also kept in primitive fields, so comparisons, conversions,
+ * `equals` and `hashCode` never unbox `value` and allocate nothing. Arithmetic creates a new `Duration` whose
+ * public `value` is boxed, outside of the small values cached by `Long.valueOf`.
+ * `compareTo` orders durations by length while `equals` still compares value and unit, so `1 s` and `1000 ms`
+ * compare as 0 but are not equal.
+ * <p/>
  * * Duration.of("12 s")
  * * Duration.parse("12 h")
  * * Duration.of(12, TimeUnit.SECONDS)
  */
-public class Duration {
+public class Duration implements Comparable<Duration> {
+
+    public static final Duration ZERO = new Duration(0L, TimeUnit.NANOSECONDS);
+    public static final Duration ONE_MILLISECOND = new Duration(1L, TimeUnit.MILLISECONDS);
+    public static final Duration ONE_SECOND = new Duration(1L, TimeUnit.SECONDS);
+    public static final Duration ONE_MINUTE = new Duration(1L, TimeUnit.MINUTES);
 
     public final Long value;
     public final TimeUnit unit;
+    private final long amount;
+    private final long nanos;
 
-    public Duration(Long value, TimeUnit unit) {
-        Invariant.checkNotNull(value);
+    public Duration(long value, TimeUnit unit) {
         Invariant.checkNotNull(unit);
         this.value = value;
         this.unit = unit;
+        this.amount = value;
+        this.nanos = unit.toNanos(value);
+    }
+
+    public Duration(Long value, TimeUnit unit) {
+        this(longValue(value), unit);
     }
 
     public Duration(Integer value, TimeUnit unit) {
-        Invariant.checkNotNull(value);
-        Invariant.checkNotNull(unit);
-        this.value = value.longValue();
-        this.unit = unit;
+        this(longValue(value), unit);
     }
 
     public Duration(String expression) {
@@ -34,16 +51,48 @@ public class Duration {
         Duration d = parse(expression);
         this.value = d.value;
         this.unit = d.unit;
+        this.amount = d.amount;
+        this.nanos = d.nanos;
     }
 
-    public static Duration of(Long value, TimeUnit unit) {
+    /**
+     * Returns one of the shared constants when `value` and `unit` match it
+     */
+    public static Duration of(long value, TimeUnit unit) {
+        if (value == 0L && unit == TimeUnit.NANOSECONDS) {
+            return ZERO;
+        }
+        if (value == 1L) {
+            if (unit == TimeUnit.MILLISECONDS) {
+                return ONE_MILLISECOND;
+            }
+            if (unit == TimeUnit.SECONDS) {
+                return ONE_SECOND;
+            }
+            if (unit == TimeUnit.MINUTES) {
+                return ONE_MINUTE;
+            }
+        }
         return new Duration(value, unit);
     }
 
+    public static Duration of(Long value, TimeUnit unit) {
+        return of(longValue(value), unit);
+    }
+
+    public static Duration ofNanos(long nanos) {
+        return of(nanos, TimeUnit.NANOSECONDS);
+    }
+
     public static Duration of(String expression) {
         return Duration.parse(expression);
     }
 
+    private static long longValue(Number value) {
+        Invariant.checkNotNull(value);
+        return value.longValue();
+    }
+
     @Override
     public final boolean equals(Object o) {
         if (this == o) {
@@ -58,7 +107,7 @@ public class Duration {
         if (unit != duration.unit) {
             return false;
         }
-        if (!value.equals(duration.value)) {
+        if (amount != duration.amount) {
             return false;
         }
 
@@ -67,7 +116,7 @@ public class Duration {
 
     @Override
     public final int hashCode() {
-        int result = value.hashCode();
+        int result = Long.hashCode(amount);
         result = 31 * result + unit.hashCode();
         return result;
     }
@@ -77,91 +126,62 @@ public class Duration {
     }
 
     public final String toHumanReadable(boolean small) {
-        if (toMillis() == 0L) {
-            if (toMicros() == 0L) {
-                return value + " nanos";
-            } else {
-                return value + " microsec";
-            }
-        }
-        if (toMillis() < 1000L) {
-            return value + " millis";
-        }
-        Long seconds = toSeconds();
-        Double numyears = Math.floor(seconds / 31536000);
-        Double numdays = Math.floor((seconds % 31536000) / 86400);
-        Double numhours = Math.floor(((seconds % 31536000) % 86400) / 3600);
-        Double numminutes = Math.floor((((seconds % 31536000) % 86400) % 3600) / 60);
-        Long numseconds = (((seconds % 31536000) % 86400) % 3600) % 60;
-        Long nummillis = toMillis() - (seconds * 1000);
-        Long nummicros = toMicros() - (nummillis * 1000) - (seconds * 1000000);
-        Long numnanos = toNanos() - (nummicros * 1000) - (nummillis * 1000000) - (seconds * 1000000000);
-        StringBuilder builder = new StringBuilder();
-        if (numyears > 0) {
-            builder.append(numyears.intValue()).append(small ? "y" : " year");
-            if (numyears > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
-            }
-        }
-        if (numdays > 0) {
-            builder.append(numdays.intValue()).append(small ? "d" : " day");
-            if (numdays > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
-            }
-        }
-        if (numhours > 0) {
-            builder.append(numhours.intValue()).append(small ? "h" : " hour");
-            if (numhours > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
-            }
-        }
-        if (numminutes > 0) {
-            builder.append(numminutes.intValue()).append(small ? "m" : " minute");
-            if (numminutes > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
+        return appendHumanReadable(new StringBuilder(32), small).toString();
+    }
+
+    public final <A extends Appendable> A appendHumanReadable(A out) {
+        return appendHumanReadable(out, false);
+    }
+
+    /**
+     * Writes `toHumanReadable(small)` to `out` using integer arithmetic only, IO errors are rethrown unchecked
+     */
+    public final <A extends Appendable> A appendHumanReadable(A out, boolean small) {
+        try {
+            long millis = toMillis();
+            if (millis == 0L) {
+                Appendables.appendLong(out, amount);
+                out.append(toMicros() == 0L ? " nanos" : " microsec");
+                return out;
             }
-        }
-        if (numseconds > 0) {
-            builder.append(numseconds).append(small ? "s" : " second");
-            if (numseconds > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
+            if (millis < 1000L) {
+                Appendables.appendLong(out, amount);
+                out.append(" millis");
+                return out;
             }
+            long seconds = toSeconds();
+            long nummillis = millis - (seconds * 1000);
+            long nummicros = toMicros() - (nummillis * 1000) - (seconds * 1000000);
+            long numnanos = nanos - (nummicros * 1000) - (nummillis * 1000000) - (seconds * 1000000000);
+            boolean first = true;
+            // years used to be printed from an int
+            first = appendPart(out, Math.min(seconds / 31536000, Integer.MAX_VALUE), small ? "y" : " year", small, first);
+            first = appendPart(out, (seconds % 31536000) / 86400, small ? "d" : " day", small, first);
+            first = appendPart(out, ((seconds % 31536000) % 86400) / 3600, small ? "h" : " hour", small, first);
+            first = appendPart(out, (((seconds % 31536000) % 86400) % 3600) / 60, small ? "m" : " minute", small, first);
+            first = appendPart(out, (((seconds % 31536000) % 86400) % 3600) % 60, small ? "s" : " second", small, first);
+            first = appendPart(out, nummillis, small ? " milli" : " millisecond", small, first);
+            first = appendPart(out, nummicros, small ? " micro" : " microsecond", small, first);
+            appendPart(out, numnanos, small ? " nano" : " nanosecond", small, first);
+            return out;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
         }
-        if (nummillis > 0) {
-            builder.append(nummillis).append(small ? " milli" : " millisecond");
-            if (nummillis > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
-            }
+    }
+
+    private static boolean appendPart(Appendable out, long count, String suffix, boolean small, boolean first) throws IOException {
+        if (count <= 0L) {
+            return first;
         }
-        if (nummicros > 0) {
-            builder.append(nummicros).append(small ? " micro" : " microsecond");
-            if (nummicros > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
-            }
+        if (!first) {
+            out.append(' ');
         }
-        if (numnanos > 0) {
-            builder.append(numnanos).append(small ? " nano" : " nanosecond");
-            if (numnanos > 1 && !small) {
-                builder.append("s ");
-            } else {
-                builder.append(" ");
-            }
+        Appendables.appendLong(out, count);
+        out.append(suffix);
+        if (count > 1L && !small) {
+            out.append('s');
         }
-        return builder.toString().trim();
+        return false;
     }
 
     @Override
@@ -203,97 +223,425 @@ public class Duration {
         put("d", TimeUnit.DAYS);
     }});
 
+    private static final char[][] UNIT_NAMES = new char[UNITS.size()][];
+    private static final TimeUnit[] UNIT_VALUES = new TimeUnit[UNITS.size()];
+    private static final int MAX_CACHED = 512;
+    private static final ConcurrentHashMap<String, CachedDuration> CACHE = new ConcurrentHashMap<>();
+    // clock eviction : the hand skips, and clears, entries read since it last passed them
+    private static final CachedDuration[] CACHE_RING = new CachedDuration[MAX_CACHED];
+    private static int cacheHand = 0;
+
+    private static final class CachedDuration {
+        final String expression;
+        final Duration duration;
+        volatile boolean referenced;
+
+        CachedDuration(String expression, Duration duration) {
+            this.expression = expression;
+            this.duration = duration;
+        }
+    }
+
+    static {
+        int i = 0;
+        for (Map.Entry<String, TimeUnit> entry : UNITS.entrySet()) {
+            UNIT_NAMES[i] = entry.getKey().toCharArray();
+            UNIT_VALUES[i] = entry.getValue();
+            i++;
+        }
+    }
+
     public static Duration parse(String expression) {
-        if (expression.contains(" ")) {
-            List<String> parts = Arrays.asList(expression.trim().toLowerCase().split(" "));
-            Invariant.invariant(parts.size() == 2, "Duration expression should have two parts");
-            Long value = Long.valueOf(parts.get(0));
-            String unitOfTime = parts.get(1);
-            if (UNITS.containsKey(unitOfTime)) {
-                return new Duration(value, UNITS.get(unitOfTime.toLowerCase()));
+        return parse((CharSequence) expression);
+    }
+
+    /**
+     * Parses `value unit` expressions (`12 s`, `12s`, `12 Seconds`), compound ones (`1h 30m 15s`) summed in their
+     * finest unit, and ISO-8601 durations made of days, hours, minutes and seconds (`PT1H30M`, `P1DT0.5S`).
+     * <p/>
+     * The expression is read in a single pass, unit names are the `UNITS` keys compared without case. Results of
+     * the last few hundred `String` expressions used are cached, the least recently read ones being evicted first.
+     */
+    public static Duration parse(CharSequence expression) {
+        Invariant.checkNotNull(expression);
+        if (!(expression instanceof String)) {
+            return parseExpression(expression);
+        }
+        CachedDuration cached = CACHE.get(expression);
+        if (cached != null) {
+            if (!cached.referenced) {
+                cached.referenced = true;
+            }
+            return cached.duration;
+        }
+        Duration duration = parseExpression(expression);
+        cache(new CachedDuration((String) expression, duration));
+        return duration;
+    }
+
+    private static void cache(CachedDuration entry) {
+        synchronized (CACHE_RING) {
+            if (CACHE.containsKey(entry.expression)) {
+                return;
+            }
+            CachedDuration victim = CACHE_RING[cacheHand];
+            while (victim != null && victim.referenced) {
+                victim.referenced = false;
+                cacheHand = (cacheHand + 1) % MAX_CACHED;
+                victim = CACHE_RING[cacheHand];
+            }
+            if (victim != null) {
+                CACHE.remove(victim.expression);
+            }
+            CACHE_RING[cacheHand] = entry;
+            CACHE.put(entry.expression, entry);
+            cacheHand = (cacheHand + 1) % MAX_CACHED;
+        }
+    }
+
+    private static Duration parseExpression(CharSequence expression) {
+        int end = expression.length();
+        while (end > 0 && expression.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int pos = skipBlanks(expression, 0, end);
+        if (pos < end && (expression.charAt(pos) == 'P' || expression.charAt(pos) == 'p')) {
+            return parseIso(expression, pos + 1, end);
+        }
+        Components components = new Components();
+        while (pos < end) {
+            boolean negative = expression.charAt(pos) == '-';
+            if (negative || expression.charAt(pos) == '+') {
+                pos++;
+            }
+            int digits = pos;
+            long value = 0L;
+            while (pos < end && isDigit(expression.charAt(pos))) {
+                value = appendDigit(value, expression.charAt(pos), expression);
+                pos++;
+            }
+            if (negative) {
+                value = -value;
+            }
+            pos = skipBlanks(expression, pos, end);
+            int letters = pos;
+            while (pos < end && isLetter(expression.charAt(pos))) {
+                pos++;
+            }
+            TimeUnit unit = unitOf(expression, letters, pos);
+            if (digits == letters || unit == null) {
+                throw cantParse(expression);
+            }
+            components.add(value, unit);
+            pos = skipBlanks(expression, pos, end);
+        }
+        return components.result(expression);
+    }
+
+    private static Duration parseIso(CharSequence expression, int pos, int end) {
+        Components components = new Components();
+        boolean time = false;
+        while (pos < end) {
+            char c = expression.charAt(pos);
+            if (c == 'T' || c == 't') {
+                if (time) {
+                    throw cantParse(expression);
+                }
+                time = true;
+                pos++;
+                continue;
+            }
+            int digits = pos;
+            long value = 0L;
+            while (pos < end && isDigit(expression.charAt(pos))) {
+                value = appendDigit(value, expression.charAt(pos), expression);
+                pos++;
+            }
+            long fraction = 0L;
+            int fractionDigits = 0;
+            if (pos < end && (expression.charAt(pos) == '.' || expression.charAt(pos) == ',')) {
+                pos++;
+                while (pos < end && isDigit(expression.charAt(pos))) {
+                    fraction = appendDigit(fraction, expression.charAt(pos), expression);
+                    fractionDigits++;
+                    pos++;
+                }
+            }
+            if (pos == digits || pos == end || fractionDigits > 9) {
+                throw cantParse(expression);
+            }
+            char designator = Character.toUpperCase(expression.charAt(pos++));
+            TimeUnit unit = null;
+            if (!time && designator == 'D') {
+                unit = TimeUnit.DAYS;
+            } else if (time && designator == 'H') {
+                unit = TimeUnit.HOURS;
+            } else if (time && designator == 'M') {
+                unit = TimeUnit.MINUTES;
+            } else if (time && designator == 'S') {
+                unit = TimeUnit.SECONDS;
+            }
+            if (unit == null || (fractionDigits > 0 && unit != TimeUnit.SECONDS) || !components.isBefore(unit)) {
+                throw cantParse(expression);
+            }
+            if (fractionDigits == 0) {
+                components.add(value, unit);
             } else {
-                throw new RuntimeException("Can't parse expression " + expression + ". The format is 'value unit'.");
+                // 1.5S is 1500 milliseconds, 1.0005S is 1000500 microseconds
+                int scale = fractionDigits <= 3 ? 3 : fractionDigits <= 6 ? 6 : 9;
+                TimeUnit fine = scale == 3 ? TimeUnit.MILLISECONDS : scale == 6 ? TimeUnit.MICROSECONDS : TimeUnit.NANOSECONDS;
+                try {
+                    long fineValue = Math.addExact(Math.multiplyExact(value, pow10(scale)), fraction * pow10(scale - fractionDigits));
+                    components.add(fineValue, fine);
+                } catch (ArithmeticException e) {
+                    throw cantParse(expression);
+                }
+            }
+        }
+        if (time && !components.isAfter(TimeUnit.DAYS)) {
+            // a 'T' without any time component
+            throw cantParse(expression);
+        }
+        return components.result(expression);
+    }
+
+    /**
+     * Components of an expression, summed in nanoseconds. A single component keeps its own value and unit.
+     */
+    private static final class Components {
+        int count = 0;
+        long firstValue = 0L;
+        TimeUnit firstUnit = null;
+        TimeUnit finest = null;
+        long nanos = 0L;
+        boolean overflow = false;
+
+        void add(long value, TimeUnit unit) {
+            if (count == 0) {
+                firstValue = value;
+                firstUnit = unit;
+            }
+            count++;
+            if (finest == null || unit.compareTo(finest) < 0) {
+                finest = unit;
+            }
+            long componentNanos = unit.toNanos(value);
+            if (unit != TimeUnit.NANOSECONDS && (componentNanos == Long.MAX_VALUE || componentNanos == Long.MIN_VALUE)) {
+                overflow = true;
             }
-        } else {
-            String unitExpression = expression.replaceAll("([0-9]+)", "").trim().toLowerCase();
-            String valueExpression = expression.toLowerCase().replace(unitExpression, "").trim();
-            if (UNITS.containsKey(unitExpression)) {
-                Long value = Long.valueOf(valueExpression);
-                return new Duration(value, UNITS.get(unitExpression));
+            try {
+                nanos = Math.addExact(nanos, componentNanos);
+            } catch (ArithmeticException e) {
+                overflow = true;
             }
-            throw new RuntimeException("Can't parse expression " + expression + ". The format is 'value unit'.");
         }
+
+        boolean isBefore(TimeUnit unit) {
+            return finest == null || unit.compareTo(finest) < 0;
+        }
+
+        boolean isAfter(TimeUnit unit) {
+            return finest != null && finest.compareTo(unit) < 0;
+        }
+
+        Duration result(CharSequence expression) {
+            if (count == 0) {
+                throw cantParse(expression);
+            }
+            if (count == 1) {
+                return of(firstValue, firstUnit);
+            }
+            if (overflow) {
+                throw cantParse(expression);
+            }
+            return of(finest.convert(nanos, TimeUnit.NANOSECONDS), finest);
+        }
+    }
+
+    private static TimeUnit unitOf(CharSequence expression, int start, int end) {
+        int length = end - start;
+        for (int i = 0; i < UNIT_NAMES.length; i++) {
+            char[] name = UNIT_NAMES[i];
+            if (name.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && toLowerCase(expression.charAt(start + j)) == name[j]) {
+                j++;
+            }
+            if (j == length) {
+                return UNIT_VALUES[i];
+            }
+        }
+        return null;
+    }
+
+    private static long appendDigit(long value, char digit, CharSequence expression) {
+        int d = digit - '0';
+        if (value > (Long.MAX_VALUE - d) / 10L) {
+            throw cantParse(expression);
+        }
+        return value * 10L + d;
+    }
+
+    private static long pow10(int exponent) {
+        long value = 1L;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10L;
+        }
+        return value;
+    }
+
+    private static int skipBlanks(CharSequence expression, int pos, int end) {
+        while (pos < end && expression.charAt(pos) <= ' ') {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static RuntimeException cantParse(CharSequence expression) {
+        return new RuntimeException("Can't parse expression " + expression + ". The format is 'value unit'.");
     }
 
     public final long toNanos() {
-        return unit.toNanos(value);
+        return nanos;
     }
 
     public final long toMicros() {
-        return unit.toMicros(value);
+        return unit.toMicros(amount);
     }
 
     public final long toMillis() {
-        return unit.toMillis(value);
+        return unit.toMillis(amount);
     }
 
     public final long toSeconds() {
-        return unit.toSeconds(value);
+        return unit.toSeconds(amount);
     }
 
     public final long toMinutes() {
-        return unit.toMinutes(value);
+        return unit.toMinutes(amount);
     }
 
     public final long toHours() {
-        return unit.toHours(value);
+        return unit.toHours(amount);
     }
 
     public final long toDays() {
-        return unit.toDays(value);
+        return unit.toDays(amount);
     }
 
     public final Duration plus(Duration d) {
-        return new Duration(this.toNanos() + d.toNanos(), TimeUnit.NANOSECONDS);
+        return plusNanos(d.nanos);
+    }
+
+    /**
+     * Always a new instance, merging it with the shared constants would keep escape analysis from removing it.
+     * The boxed `value` of the result is allocated too.
+     */
+    public final Duration plusNanos(long nanos) {
+        return new Duration(this.nanos + nanos, TimeUnit.NANOSECONDS);
     }
 
     public final Duration minus(Duration d) {
-        long value = this.toNanos() - d.toNanos();
+        return minusNanos(d.nanos);
+    }
+
+    /**
+     * Clamped at zero like `minus`, always a new instance like `plusNanos`
+     */
+    public final Duration minusNanos(long nanos) {
+        long value = this.nanos - nanos;
         if (value < 0L) {
             value = 0L;
         }
         return new Duration(value, TimeUnit.NANOSECONDS);
     }
 
+    @Override
+    public final int compareTo(Duration d) {
+        return Long.compare(nanos, d.nanos);
+    }
+
+    public final boolean isLongerThan(Duration d) {
+        return nanos > d.nanos;
+    }
+
+    public final boolean isShorterThan(Duration d) {
+        return nanos < d.nanos;
+    }
+
+    public final boolean isZero() {
+        return nanos == 0L;
+    }
+
     public final java.time.Duration toJdkDuration() {
         return java.time.Duration.ofNanos(toNanos());
     }
 
     public static Measurable measure() {
-        return new Measurable(TimeUnit.MILLISECONDS, System.currentTimeMillis());
+        return measure(Clock.system());
+    }
+
+    public static Measurable measure(Clock clock) {
+        return new Measurable(TimeUnit.MILLISECONDS, clock, clock.currentTimeMillis());
     }
 
     public static Measurable measureNanos() {
-        return new Measurable(TimeUnit.NANOSECONDS, System.nanoTime());
+        return measureNanos(Clock.system());
+    }
+
+    public static Measurable measureNanos(Clock clock) {
+        return new Measurable(TimeUnit.NANOSECONDS, clock, clock.nanoTime());
     }
 
     public static class Measurable {
         final TimeUnit unit;
-        final Long start;
+        final Clock clock;
+        final long start;
 
-        Measurable(TimeUnit unit, Long start) {
+        Measurable(TimeUnit unit, Clock clock, long start) {
             this.unit = unit;
+            this.clock = clock;
             this.start = start;
         }
 
         public final Duration stop() {
             if (unit.equals(TimeUnit.MILLISECONDS)) {
-                return new Duration(System.currentTimeMillis() - start, unit);
+                return new Duration(clock.currentTimeMillis() - start, unit);
             }
             if (unit.equals(TimeUnit.NANOSECONDS)) {
-                return new Duration(System.nanoTime() - start, unit);
+                return new Duration(clock.nanoTime() - start, unit);
             }
             throw new RuntimeException("Unsupported unit " + unit.name());
         }
+
+        /**
+         * Records the elapsed time in `histogram` without creating a `Duration`, returns it in nanoseconds
+         */
+        public final long recordTo(LatencyHistogram histogram) {
+            long elapsed;
+            if (unit.equals(TimeUnit.NANOSECONDS)) {
+                elapsed = clock.nanoTime() - start;
+            } else if (unit.equals(TimeUnit.MILLISECONDS)) {
+                elapsed = TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis() - start);
+            } else {
+                throw new RuntimeException("Unsupported unit " + unit.name());
+            }
+            histogram.record(elapsed);
+            return elapsed;
+        }
     }
 }
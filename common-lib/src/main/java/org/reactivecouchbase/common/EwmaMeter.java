@@ -0,0 +1,165 @@
+package org.reactivecouchbase.common;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exponentially weighted moving average rates over 1, 5 and 15 minutes, like unix load averages, plus the
+ * mean rate since creation.
+ * <p/>
+ * There is no background thread : marks only add to a `LongAdder` and elapsed ticks are folded in lazily by
+ * the first caller (mark or read) that notices them. When several ticks elapsed, the events counted meanwhile
+ * are spread evenly over them and the decay of all the ticks is applied at once.
+ * <p/>
+ * * EwmaMeter meter = EwmaMeter.of();
+ * * meter.oneMinuteRate().perMinute()
+ */
+public class EwmaMeter {
+
+    private static final Duration PER_SECOND = Duration.of(1L, TimeUnit.SECONDS);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1L);
+
+    private final long tickInterval;
+    private final double m1Decay;
+    private final double m5Decay;
+    private final double m15Decay;
+    private final Clock clock;
+    private final long startTime;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick;
+    // events per second
+    private volatile double m1Rate = 0.0;
+    private volatile double m5Rate = 0.0;
+    private volatile double m15Rate = 0.0;
+    private volatile boolean initialized = false;
+
+    private EwmaMeter(long tickInterval, Clock clock) {
+        Invariant.invariant(tickInterval > 0L, "Tick interval should be positive");
+        Invariant.checkNotNull(clock);
+        this.tickInterval = tickInterval;
+        this.m1Decay = Math.exp(-tickInterval / 60000.0);
+        this.m5Decay = Math.exp(-tickInterval / 300000.0);
+        this.m15Decay = Math.exp(-tickInterval / 900000.0);
+        this.clock = clock;
+        this.startTime = clock.currentTimeMillis();
+        this.lastTick = new AtomicLong(startTime);
+    }
+
+    /**
+     * Meter ticking every 5 seconds
+     */
+    public static EwmaMeter of() {
+        return new EwmaMeter(5000L, Clock.cached());
+    }
+
+    public static EwmaMeter of(Duration tickInterval) {
+        return new EwmaMeter(tickInterval.toMillis(), Clock.cached());
+    }
+
+    public static EwmaMeter of(Duration tickInterval, Clock clock) {
+        return new EwmaMeter(tickInterval.toMillis(), clock);
+    }
+
+    public void mark() {
+        mark(1L);
+    }
+
+    public void mark(long of) {
+        tickIfNecessary();
+        count.add(of);
+        uncounted.add(of);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public MeasuredRate.Rate oneMinuteRate() {
+        tickIfNecessary();
+        return perSecond(m1Rate);
+    }
+
+    public MeasuredRate.Rate fiveMinuteRate() {
+        tickIfNecessary();
+        return perSecond(m5Rate);
+    }
+
+    public MeasuredRate.Rate fifteenMinuteRate() {
+        tickIfNecessary();
+        return perSecond(m15Rate);
+    }
+
+    public MeasuredRate.Rate meanRate() {
+        long elapsed = clock.currentTimeMillis() - startTime;
+        if (elapsed <= 0L) {
+            return perSecond(0.0);
+        }
+        return perSecond(count.sum() * 1000.0 / elapsed);
+    }
+
+    public MeasuredRate.FastRate meanFastRate() {
+        long elapsed = clock.currentTimeMillis() - startTime;
+        return new MeasuredRate.FastRate(count.sum(), TimeUnit.MILLISECONDS.toNanos(Math.max(elapsed, 1L)));
+    }
+
+    public MeasuredRate.FastRate oneMinuteFastRate() {
+        tickIfNecessary();
+        return new MeasuredRate.FastRate(m1Rate, NANOS_PER_SECOND);
+    }
+
+    public MeasuredRate.FastRate fiveMinuteFastRate() {
+        tickIfNecessary();
+        return new MeasuredRate.FastRate(m5Rate, NANOS_PER_SECOND);
+    }
+
+    public MeasuredRate.FastRate fifteenMinuteFastRate() {
+        tickIfNecessary();
+        return new MeasuredRate.FastRate(m15Rate, NANOS_PER_SECOND);
+    }
+
+    private void tickIfNecessary() {
+        long last = lastTick.get();
+        long age = clock.currentTimeMillis() - last;
+        if (age >= tickInterval) {
+            long ticks = age / tickInterval;
+            if (lastTick.compareAndSet(last, last + ticks * tickInterval)) {
+                double instantRate = uncounted.sumThenReset() * 1000.0 / (ticks * tickInterval);
+                if (initialized) {
+                    m1Rate = decay(m1Rate, instantRate, m1Decay, ticks);
+                    m5Rate = decay(m5Rate, instantRate, m5Decay, ticks);
+                    m15Rate = decay(m15Rate, instantRate, m15Decay, ticks);
+                } else {
+                    m1Rate = instantRate;
+                    m5Rate = instantRate;
+                    m15Rate = instantRate;
+                    initialized = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies `ticks` updates with the same instant rate : rate + alpha * (instant - rate) each time
+     */
+    private static double decay(double rate, double instantRate, double decay, long ticks) {
+        return instantRate + (rate - instantRate) * Math.pow(decay, ticks);
+    }
+
+    private static MeasuredRate.Rate perSecond(double rate) {
+        return new MeasuredRate.Rate(BigDecimal.valueOf(rate), PER_SECOND);
+    }
+
+    @Override
+    public String toString() {
+        return "EwmaMeter { " +
+                "count = " + count() +
+                ", m1 = " + oneMinuteRate() +
+                ", m5 = " + fiveMinuteRate() +
+                ", m15 = " + fifteenMinuteRate() +
+                ", mean = " + meanRate() +
+                " }";
+    }
+}
@@ -0,0 +1,51 @@
+package org.reactivecouchbase.common;
+
+/**
+ * Hash mixing shared by the probabilistic counters.
+ */
+final class Hashing {
+
+    private Hashing() {
+    }
+
+    /**
+     * MurmurHash3 64 bits finalizer : every input bit affects every output bit
+     */
+    static long mix64(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * 64 bits hash of `key.hashCode()`, good enough to derive several independent indexes from
+     */
+    static long hash(Object key) {
+        return mix64(key.hashCode() * 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * 64 bits hash of the chars of `value` (FNV-1a then mixed), unlike `String.hashCode()` it stays collision free
+     * well beyond billions of distinct values
+     */
+    static long hash(CharSequence value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix64(hash);
+    }
+
+    /**
+     * `row`th index in [0, mask] derived from a single 64 bits hash (Kirsch-Mitzenmacher double hashing)
+     */
+    static int index(long hash, int row, int mask) {
+        int low = (int) hash;
+        int high = (int) (hash >>> 32);
+        return (low + row * (high | 1)) & mask;
+    }
+}
@@ -0,0 +1,301 @@
+package org.reactivecouchbase.common;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Rates of the most frequent keys in bounded memory.
+ * <p/>
+ * Counts go to a Count-Min Sketch (`depth` rows of `width` atomic counters) per sample interval, with the same
+ * tumbling windows as `MeasuredRate` : `top()` reports the last complete interval. A key's count is over
+ * estimated by at most `e / width` of the interval total with probability `1 - e^-depth`.
+ * <p/>
+ * An increment is `depth` atomic adds. The top-K members are an immutable array checked without lock, it is only
+ * replaced under a lock when a key that is not a member has an estimate above the smallest member count, read
+ * from a volatile field : once the top-K is settled, the bulk of the traffic never takes the lock.
+ * <p/>
+ * * HeavyHitters<String> hotKeys = HeavyHitters.of(Duration.of("10 s"), 20);
+ * * hotKeys.increment(documentKey);
+ * * hotKeys.top().get(0).rate().perSecond()
+ */
+public class HeavyHitters<K> {
+
+    public static class Entry<K> {
+        public final K key;
+        public final long count;
+        public final Duration per;
+
+        Entry(K key, long count, Duration per) {
+            this.key = key;
+            this.count = count;
+            this.per = per;
+        }
+
+        public MeasuredRate.Rate rate() {
+            return new MeasuredRate.Rate(BigDecimal.valueOf(count), per);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry { " +
+                    "key = " + key +
+                    ", count = " + count +
+                    ", per = " + per +
+                    " }";
+        }
+    }
+
+    /**
+     * Immutable top-K candidates, replaced as a whole when a key enters
+     */
+    private static class Members {
+        final Object[] keys;
+        final long[] hashes;
+
+        Members(Object[] keys, long[] hashes) {
+            this.keys = keys;
+            this.hashes = hashes;
+        }
+
+        boolean contains(Object key, long hash) {
+            for (int i = 0; i < hashes.length; i++) {
+                if (hashes[i] == hash && keys[i].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final Members NO_MEMBERS = new Members(new Object[0], new long[0]);
+
+    private class Window {
+        final long end;
+        final AtomicLongArray sketch;
+        volatile Members members = NO_MEMBERS;
+        /**
+         * Smallest estimate of the top-K members when it was last full, lower estimates can't enter
+         */
+        volatile long threshold = 0L;
+
+        Window(long end, boolean empty) {
+            this.end = end;
+            this.sketch = new AtomicLongArray(empty ? 0 : depth * width);
+        }
+
+        long add(long hash, long of) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, sketch.addAndGet(row * width + Hashing.index(hash, row, mask), of));
+            }
+            return estimate;
+        }
+
+        long estimate(long hash) {
+            if (sketch.length() == 0) {
+                return 0L;
+            }
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                estimate = Math.min(estimate, sketch.get(row * width + Hashing.index(hash, row, mask)));
+            }
+            return estimate;
+        }
+
+        void offer(K key, long hash, long estimate) {
+            if (estimate <= threshold || members.contains(key, hash)) {
+                return;
+            }
+            synchronized (this) {
+                Members current = members;
+                if (current.contains(key, hash)) {
+                    return;
+                }
+                int size = current.keys.length;
+                Object[] keys = new Object[Math.min(size + 1, k)];
+                long[] hashes = new long[keys.length];
+                System.arraycopy(current.keys, 0, keys, 0, Math.min(size, keys.length));
+                System.arraycopy(current.hashes, 0, hashes, 0, Math.min(size, keys.length));
+                if (size == k) {
+                    // members counts are read from the sketch so they are never stale
+                    int min = 0;
+                    long minEstimate = Long.MAX_VALUE;
+                    for (int i = 0; i < size; i++) {
+                        long memberEstimate = estimate(hashes[i]);
+                        if (memberEstimate < minEstimate) {
+                            min = i;
+                            minEstimate = memberEstimate;
+                        }
+                    }
+                    if (estimate <= minEstimate) {
+                        threshold = minEstimate;
+                        return;
+                    }
+                    keys[min] = key;
+                    hashes[min] = hash;
+                } else {
+                    keys[size] = key;
+                    hashes[size] = hash;
+                }
+                members = new Members(keys, hashes);
+                if (keys.length == k) {
+                    long minEstimate = Long.MAX_VALUE;
+                    for (long memberHash : hashes) {
+                        minEstimate = Math.min(minEstimate, estimate(memberHash));
+                    }
+                    threshold = minEstimate;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        List<Entry<K>> top() {
+            Members current = members;
+            List<Entry<K>> top = new ArrayList<>(current.keys.length);
+            for (int i = 0; i < current.keys.length; i++) {
+                top.add(new Entry<>((K) current.keys[i], estimate(current.hashes[i]), interval));
+            }
+            top.sort((a, b) -> Long.compare(b.count, a.count));
+            return Collections.unmodifiableList(top);
+        }
+    }
+
+    private class Windows {
+        final Window current;
+        final Window last;
+
+        Windows(Window current, Window last) {
+            this.current = current;
+            this.last = last;
+        }
+    }
+
+    private final long sampleInterval;
+    private final Duration interval;
+    private final int k;
+    private final int width;
+    private final int mask;
+    private final int depth;
+    private final Clock clock;
+    private final Window empty;
+    private final AtomicReference<Windows> windows;
+
+    private HeavyHitters(long sampleInterval, int k, int width, int depth, Clock clock) {
+        Invariant.invariant(sampleInterval > 0L, "Sample interval should be positive");
+        Invariant.invariant(k > 0, "K should be positive");
+        Invariant.invariant(width > 0 && Integer.bitCount(width) == 1, "Width should be a power of two");
+        Invariant.invariant(depth > 0 && depth <= 16, "Depth should be between 1 and 16");
+        Invariant.checkNotNull(clock);
+        this.sampleInterval = sampleInterval;
+        this.interval = Duration.of(sampleInterval, TimeUnit.MILLISECONDS);
+        this.k = k;
+        this.width = width;
+        this.mask = width - 1;
+        this.depth = depth;
+        this.clock = clock;
+        this.empty = new Window(0L, true);
+        this.windows = new AtomicReference<>(new Windows(new Window(clock.currentTimeMillis() + sampleInterval, false), empty));
+    }
+
+    /**
+     * Top `k` keys over `interval` with a 4 x 2048 sketch : counts within 0.13% of the interval total with 98% confidence
+     */
+    public static <K> HeavyHitters<K> of(Duration interval, int k) {
+        return new HeavyHitters<>(interval.toMillis(), k, 2048, 4, Clock.cached());
+    }
+
+    /**
+     * `width` must be a power of two, the sketch takes `8 * width * depth` bytes per interval
+     */
+    public static <K> HeavyHitters<K> of(Duration interval, int k, int width, int depth) {
+        return new HeavyHitters<>(interval.toMillis(), k, width, depth, Clock.cached());
+    }
+
+    public static <K> HeavyHitters<K> of(Duration interval, int k, int width, int depth, Clock clock) {
+        return new HeavyHitters<>(interval.toMillis(), k, width, depth, clock);
+    }
+
+    public void increment(K key) {
+        increment(key, 1L);
+    }
+
+    public void mark(K key) {
+        increment(key, 1L);
+    }
+
+    public void increment(K key, long of) {
+        Invariant.checkNotNull(key);
+        Window window = checkAndResetWindow().current;
+        long hash = Hashing.hash(key);
+        window.offer(key, hash, window.add(hash, of));
+    }
+
+    public void mark(K key, long of) {
+        increment(key, of);
+    }
+
+    /**
+     * Most frequent keys of the last sample interval, most frequent first
+     */
+    public List<Entry<K>> top() {
+        return checkAndResetWindow().last.top();
+    }
+
+    /**
+     * Most frequent keys so far in the current sample interval, which is incomplete
+     */
+    public List<Entry<K>> currentTop() {
+        return checkAndResetWindow().current.top();
+    }
+
+    /**
+     * Estimated count of `key` in the last sample interval, never lower than the real count
+     */
+    public long getCount(K key) {
+        Invariant.checkNotNull(key);
+        return checkAndResetWindow().last.estimate(Hashing.hash(key));
+    }
+
+    public MeasuredRate.Rate rate(K key) {
+        return new MeasuredRate.Rate(BigDecimal.valueOf(getCount(key)), interval);
+    }
+
+    public void reset() {
+        windows.set(new Windows(new Window(clock.currentTimeMillis() + sampleInterval, false), empty));
+    }
+
+    public final int k() {
+        return k;
+    }
+
+    private Windows checkAndResetWindow() {
+        long now = clock.currentTimeMillis();
+        Windows current = windows.get();
+        while (now >= current.current.end) {
+            long end = current.current.end;
+            // skip the windows without any activity
+            long elapsed = (now - end) / sampleInterval;
+            Window last = elapsed == 0L ? current.current : empty;
+            Windows next = new Windows(new Window(end + (elapsed + 1L) * sampleInterval, false), last);
+            if (windows.compareAndSet(current, next)) {
+                return next;
+            }
+            current = windows.get();
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return "HeavyHitters { " +
+                "k = " + k +
+                ", interval = " + interval +
+                ", top = " + top() +
+                " }";
+    }
+}
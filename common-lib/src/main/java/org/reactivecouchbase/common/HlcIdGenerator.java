@@ -0,0 +1,173 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Unique id generator based on a hybrid logical clock.
+ * <p/>
+ * Ids use an `IdGenerator.Layout` where the timestamp part is the logical time, always greater or equal to
+ * the physical clock, and the sequence part is the logical counter. When the wall clock steps backward
+ * (NTP adjustments, VM pauses) or the counter is exhausted, the generator keeps issuing monotonic ids by
+ * running ahead of the physical clock. It only fails when it would run ahead by more than `maxSkew`.
+ * <p/>
+ * * HlcIdGenerator.of(42L, Duration.of("5 s"))
+ */
+public class HlcIdGenerator {
+
+    public static class ClockSkewException extends RuntimeException {
+        public ClockSkewException(String message) {
+            super(message);
+        }
+    }
+
+    private final IdGenerator.Layout layout;
+    private final long nodeId;
+    private final long maxSkewMillis;
+    private final Clock clock;
+    /**
+     * Last issued logical time and counter packed in a single word (time << sequenceBits | counter)
+     */
+    private final AtomicLong lastTimeAndCounter = new AtomicLong(0L);
+    private final AtomicLong lastPhysicalTime = new AtomicLong(0L);
+    private final AtomicLong regressions = new AtomicLong(0L);
+    private final AtomicLong skewRejections = new AtomicLong(0L);
+    private final AtomicLong maxObservedSkew = new AtomicLong(0L);
+
+    private HlcIdGenerator(IdGenerator.Layout layout, long nodeId, Duration maxSkew, Clock clock) {
+        Invariant.checkNotNull(layout);
+        Invariant.checkNotNull(maxSkew);
+        Invariant.checkNotNull(clock);
+        Invariant.invariant(nodeId >= 0L && nodeId <= layout.maxNodeId(), "Node id should be between 0 and " + layout.maxNodeId());
+        this.layout = layout;
+        this.nodeId = nodeId;
+        this.maxSkewMillis = maxSkew.toMillis();
+        this.clock = clock;
+    }
+
+    public static HlcIdGenerator of(long nodeId, Duration maxSkew) {
+        return new HlcIdGenerator(IdGenerator.Layout.DEFAULT, nodeId, maxSkew, Clock.system());
+    }
+
+    public static HlcIdGenerator of(IdGenerator.Layout layout, long nodeId, Duration maxSkew) {
+        return new HlcIdGenerator(layout, nodeId, maxSkew, Clock.system());
+    }
+
+    public static HlcIdGenerator of(IdGenerator.Layout layout, long nodeId, Duration maxSkew, Clock clock) {
+        return new HlcIdGenerator(layout, nodeId, maxSkew, clock);
+    }
+
+    public final IdGenerator.Layout layout() {
+        return layout;
+    }
+
+    public final long nodeId() {
+        return nodeId;
+    }
+
+    public long nextId() {
+        return advance(-1L, 0L);
+    }
+
+    /**
+     * Moves the logical clock past an id received from another node so ids issued afterwards are ordered after it.
+     */
+    public void update(long remoteId) {
+        advance(remoteId >>> (layout.nodeBits + layout.sequenceBits), remoteId & layout.maxSequence());
+    }
+
+    private long advance(long remoteTime, long remoteCounter) {
+        long maxCounter = layout.maxSequence();
+        while (true) {
+            long last = lastTimeAndCounter.get();
+            long lastTime = last >>> layout.sequenceBits;
+            long lastCounter = last & maxCounter;
+            long physical = physicalTime();
+            long time = Math.max(Math.max(lastTime, remoteTime), physical);
+            long counter;
+            if (time == lastTime && time == remoteTime) {
+                counter = Math.max(lastCounter, remoteCounter) + 1L;
+            } else if (time == lastTime) {
+                counter = lastCounter + 1L;
+            } else if (time == remoteTime) {
+                counter = remoteCounter + 1L;
+            } else {
+                counter = 0L;
+            }
+            if (counter > maxCounter) {
+                // borrow the next millisecond from the logical clock
+                time = time + 1L;
+                counter = 0L;
+            }
+            long skew = time - physical;
+            if (skew > maxSkewMillis) {
+                skewRejections.incrementAndGet();
+                throw new ClockSkewException("Logical clock is " + skew + " ms ahead of the physical clock, max skew is " + maxSkewMillis + " ms");
+            }
+            if (time > layout.maxTimestamp()) {
+                throw new RuntimeException("Timestamp doesn't fit in " + layout.timestampBits + " bits anymore");
+            }
+            if (lastTimeAndCounter.compareAndSet(last, (time << layout.sequenceBits) | counter)) {
+                recordSkew(skew);
+                return layout.compose(time, nodeId, counter);
+            }
+        }
+    }
+
+    private long physicalTime() {
+        long physical = clock.currentTimeMillis() - layout.epoch;
+        long last = lastPhysicalTime.get();
+        if (physical != last && lastPhysicalTime.compareAndSet(last, physical) && physical < last) {
+            regressions.incrementAndGet();
+        }
+        return physical;
+    }
+
+    private void recordSkew(long skew) {
+        long max = maxObservedSkew.get();
+        while (skew > max && !maxObservedSkew.compareAndSet(max, skew)) {
+            max = maxObservedSkew.get();
+        }
+    }
+
+    /**
+     * Number of backward steps of the wall clock observed by this generator
+     */
+    public final long regressions() {
+        return regressions.get();
+    }
+
+    /**
+     * Number of ids refused because the logical clock was too far ahead of the wall clock
+     */
+    public final long skewRejections() {
+        return skewRejections.get();
+    }
+
+    /**
+     * How far ahead of the wall clock the logical clock currently is
+     */
+    public final Duration currentSkew() {
+        long skew = (lastTimeAndCounter.get() >>> layout.sequenceBits) - (clock.currentTimeMillis() - layout.epoch);
+        return Duration.of(Math.max(0L, skew), TimeUnit.MILLISECONDS);
+    }
+
+    public final Duration maxObservedSkew() {
+        return Duration.of(maxObservedSkew.get(), TimeUnit.MILLISECONDS);
+    }
+
+    public final Duration maxSkew() {
+        return Duration.of(maxSkewMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "HlcIdGenerator { " +
+                "layout = " + layout +
+                ", nodeId = " + nodeId +
+                ", maxSkew = " + maxSkewMillis + " ms" +
+                ", regressions = " + regressions.get() +
+                ", skewRejections = " + skewRejections.get() +
+                " }";
+    }
+}
@@ -0,0 +1,340 @@
+package org.reactivecouchbase.common;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Snowflake like unique id generator with a configurable layout.
+ * <p/>
+ * Ids are `timestamp | node | sequence` where the timestamp is the number of milliseconds since the layout epoch.
+ * The sequence restarts at 0 every millisecond and, unlike `IdGenerators.generateUniqueId()`, never wraps :
+ * when it is exhausted the generator waits for the next millisecond.
+ * <p/>
+ * * IdGenerator.of(42L)
+ * * IdGenerator.of(IdGenerator.Layout.of(epoch, 39, 14, 10), 4242L, IdGenerator.WaitStrategy.PARK)
+ */
+public class IdGenerator {
+
+    public enum WaitStrategy {
+        /**
+         * Busy waits for the next millisecond, lowest latency
+         */
+        SPIN,
+        /**
+         * Parks the thread for short periods until the next millisecond, cheaper on CPU
+         */
+        PARK
+    }
+
+    public static class Layout {
+
+        /**
+         * Same layout as `IdGenerators.generateUniqueId()` : 41 bits of timestamp, 10 bits of node and 12 bits of sequence
+         */
+        public static final Layout DEFAULT = new Layout(1288834974657L, 41, 10, 12);
+
+        public final long epoch;
+        public final int timestampBits;
+        public final int nodeBits;
+        public final int sequenceBits;
+
+        private Layout(long epoch, int timestampBits, int nodeBits, int sequenceBits) {
+            Invariant.invariant(epoch >= 0L, "Epoch should be positive");
+            Invariant.invariant(timestampBits > 0 && nodeBits >= 0 && sequenceBits > 0, "Bit widths should be positive");
+            Invariant.invariant(timestampBits + nodeBits + sequenceBits <= 63, "Layout can't use more than 63 bits");
+            this.epoch = epoch;
+            this.timestampBits = timestampBits;
+            this.nodeBits = nodeBits;
+            this.sequenceBits = sequenceBits;
+        }
+
+        public static Layout of(long epoch, int timestampBits, int nodeBits, int sequenceBits) {
+            return new Layout(epoch, timestampBits, nodeBits, sequenceBits);
+        }
+
+        public final long maxTimestamp() {
+            return (1L << timestampBits) - 1L;
+        }
+
+        public final long maxNodeId() {
+            return (1L << nodeBits) - 1L;
+        }
+
+        public final long maxSequence() {
+            return (1L << sequenceBits) - 1L;
+        }
+
+        public final long compose(long relativeTimestamp, long nodeId, long sequence) {
+            return (relativeTimestamp << (nodeBits + sequenceBits)) | (nodeId << sequenceBits) | sequence;
+        }
+
+        /**
+         * Creation time of `id` in milliseconds since the unix epoch
+         */
+        public final long timestampOf(long id) {
+            return (id >>> (nodeBits + sequenceBits)) + epoch;
+        }
+
+        public final long nodeIdOf(long id) {
+            return (id >>> sequenceBits) & maxNodeId();
+        }
+
+        public final long sequenceOf(long id) {
+            return id & maxSequence();
+        }
+
+        /**
+         * Smallest id that can be issued at `timestamp` (milliseconds since the unix epoch)
+         */
+        public final long minIdAt(long timestamp) {
+            return compose(clamp(timestamp), 0L, 0L);
+        }
+
+        /**
+         * Largest id that can be issued at `timestamp` (milliseconds since the unix epoch)
+         */
+        public final long maxIdAt(long timestamp) {
+            return compose(clamp(timestamp), maxNodeId(), maxSequence());
+        }
+
+        /**
+         * Bounds of the ids issued between `from` and `to` (milliseconds since the unix epoch, both inclusive)
+         */
+        public final IdRange range(long from, long to) {
+            Invariant.invariant(from <= to, "Range start should be before range end");
+            return new IdRange(minIdAt(from), maxIdAt(to));
+        }
+
+        public final IdRange range(Instant from, Instant to) {
+            Invariant.checkNotNull(from);
+            Invariant.checkNotNull(to);
+            return range(from.toEpochMilli(), to.toEpochMilli());
+        }
+
+        /**
+         * Bounds of the ids issued during the last `window` according to `Clock.system()`
+         */
+        public final IdRange rangeOfLast(Duration window) {
+            return rangeOfLast(window, Clock.system());
+        }
+
+        /**
+         * Bounds of the ids issued during the last `window` according to `clock`, the one of the generator
+         */
+        public final IdRange rangeOfLast(Duration window, Clock clock) {
+            Invariant.checkNotNull(window);
+            Invariant.checkNotNull(clock);
+            long now = clock.currentTimeMillis();
+            return range(now - window.toMillis(), now);
+        }
+
+        private long clamp(long timestamp) {
+            return Math.min(Math.max(timestamp - epoch, 0L), maxTimestamp());
+        }
+
+        @Override
+        public String toString() {
+            return "Layout { " +
+                    "epoch = " + epoch +
+                    ", timestampBits = " + timestampBits +
+                    ", nodeBits = " + nodeBits +
+                    ", sequenceBits = " + sequenceBits +
+                    " }";
+        }
+    }
+
+    /**
+     * Inclusive bounds of the ids issued during a time window, usable for key range scans
+     */
+    public static class IdRange {
+        public final long min;
+        public final long max;
+
+        public IdRange(long min, long max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public boolean contains(long id) {
+            return id >= min && id <= max;
+        }
+
+        @Override
+        public String toString() {
+            return "IdRange { " +
+                    "min = " + min +
+                    ", max = " + max +
+                    " }";
+        }
+    }
+
+    private final Layout layout;
+    private final long nodeId;
+    private final WaitStrategy waitStrategy;
+    private final Clock clock;
+    /**
+     * Last issued relative timestamp and sequence packed in a single word (timestamp << sequenceBits | sequence)
+     */
+    private final AtomicLong lastTimestampAndSequence = new AtomicLong(0L);
+    private final AtomicLong exhaustionWaits = new AtomicLong(0L);
+    private final AtomicLong exhaustionWaitNanos = new AtomicLong(0L);
+
+    private IdGenerator(Layout layout, long nodeId, WaitStrategy waitStrategy, Clock clock) {
+        Invariant.checkNotNull(layout);
+        Invariant.checkNotNull(waitStrategy);
+        Invariant.checkNotNull(clock);
+        Invariant.invariant(nodeId >= 0L && nodeId <= layout.maxNodeId(), "Node id should be between 0 and " + layout.maxNodeId());
+        this.layout = layout;
+        this.nodeId = nodeId;
+        this.waitStrategy = waitStrategy;
+        this.clock = clock;
+    }
+
+    public static IdGenerator of(long nodeId) {
+        return new IdGenerator(Layout.DEFAULT, nodeId, WaitStrategy.SPIN, Clock.system());
+    }
+
+    public static IdGenerator of(Layout layout, long nodeId) {
+        return new IdGenerator(layout, nodeId, WaitStrategy.SPIN, Clock.system());
+    }
+
+    public static IdGenerator of(Layout layout, long nodeId, WaitStrategy waitStrategy) {
+        return new IdGenerator(layout, nodeId, waitStrategy, Clock.system());
+    }
+
+    /**
+     * Generator reading the time from `clock`. With a `ManualClock`, callers exhausting the sequence wait until
+     * another thread advances it.
+     */
+    public static IdGenerator of(Layout layout, long nodeId, WaitStrategy waitStrategy, Clock clock) {
+        return new IdGenerator(layout, nodeId, waitStrategy, clock);
+    }
+
+    public final Layout layout() {
+        return layout;
+    }
+
+    public final long nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Bounds of the ids issued by this generator during the last `window`, read from its clock
+     */
+    public final IdRange rangeOfLast(Duration window) {
+        return layout.rangeOfLast(window, clock);
+    }
+
+    public long nextId() {
+        long maxSequence = layout.maxSequence();
+        while (true) {
+            long last = lastTimestampAndSequence.get();
+            long lastTimestamp = last >>> layout.sequenceBits;
+            long timestamp = relativeTimestamp(lastTimestamp);
+            long sequence;
+            if (timestamp > lastTimestamp) {
+                sequence = 0L;
+            } else {
+                sequence = (last & maxSequence) + 1L;
+                if (sequence > maxSequence) {
+                    awaitNextMillisecond(lastTimestamp);
+                    continue;
+                }
+                timestamp = lastTimestamp;
+            }
+            if (lastTimestampAndSequence.compareAndSet(last, (timestamp << layout.sequenceBits) | sequence)) {
+                return layout.compose(timestamp, nodeId, sequence);
+            }
+        }
+    }
+
+    /**
+     * Reserves `count` unique ids and writes them in `target` starting at `offset`, one CAS per millisecond used.
+     */
+    public void reserve(long[] target, int offset, int count) {
+        Invariant.checkNotNull(target);
+        Invariant.invariant(count >= 0, "Count should be positive");
+        Invariant.invariant(offset >= 0 && offset + count <= target.length, "Not enough room in target array");
+        long maxSequence = layout.maxSequence();
+        int filled = 0;
+        while (filled < count) {
+            long last = lastTimestampAndSequence.get();
+            long lastTimestamp = last >>> layout.sequenceBits;
+            long timestamp = relativeTimestamp(lastTimestamp);
+            long first;
+            if (timestamp > lastTimestamp) {
+                first = 0L;
+            } else {
+                first = (last & maxSequence) + 1L;
+                if (first > maxSequence) {
+                    awaitNextMillisecond(lastTimestamp);
+                    continue;
+                }
+                timestamp = lastTimestamp;
+            }
+            int taken = (int) Math.min(maxSequence + 1L - first, count - filled);
+            long sequence = first + taken - 1L;
+            if (lastTimestampAndSequence.compareAndSet(last, (timestamp << layout.sequenceBits) | sequence)) {
+                long base = layout.compose(timestamp, nodeId, 0L);
+                for (int i = 0; i < taken; i++) {
+                    target[offset + filled + i] = base | (first + i);
+                }
+                filled += taken;
+            }
+        }
+    }
+
+    public long[] reserve(int count) {
+        long[] ids = new long[count];
+        reserve(ids, 0, count);
+        return ids;
+    }
+
+    /**
+     * Number of times a caller had to wait for the next millisecond because the sequence was exhausted
+     */
+    public final long exhaustionWaits() {
+        return exhaustionWaits.get();
+    }
+
+    /**
+     * Total time spent waiting for the next millisecond because the sequence was exhausted
+     */
+    public final Duration exhaustionWaitTime() {
+        return Duration.of(exhaustionWaitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    private long relativeTimestamp(long lastTimestamp) {
+        long timestamp = clock.currentTimeMillis() - layout.epoch;
+        if (timestamp < lastTimestamp) {
+            throw new RuntimeException("Clock is running backward. Sorry :-(");
+        }
+        if (timestamp > layout.maxTimestamp()) {
+            throw new RuntimeException("Timestamp doesn't fit in " + layout.timestampBits + " bits anymore");
+        }
+        return timestamp;
+    }
+
+    private void awaitNextMillisecond(long lastTimestamp) {
+        long start = clock.nanoTime();
+        while (clock.currentTimeMillis() - layout.epoch <= lastTimestamp) {
+            if (waitStrategy == WaitStrategy.PARK) {
+                LockSupport.parkNanos(50000L);
+            }
+        }
+        exhaustionWaits.incrementAndGet();
+        exhaustionWaitNanos.addAndGet(clock.nanoTime() - start);
+    }
+
+    @Override
+    public String toString() {
+        return "IdGenerator { " +
+                "layout = " + layout +
+                ", nodeId = " + nodeId +
+                ", waitStrategy = " + waitStrategy +
+                ", exhaustionWaits = " + exhaustionWaits.get() +
+                " }";
+    }
+}
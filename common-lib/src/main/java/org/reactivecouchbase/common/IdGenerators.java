@@ -1,64 +1,144 @@
 package org.reactivecouchbase.common;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 public class IdGenerators {
 
     private IdGenerators() {
     }
 
-    private static final List<String> CHARACTERS = Arrays
-            .asList("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray())
-            .stream().map(Object::toString).collect(Collectors.toList());
+    private static final char[] CHARACTERS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
 
-    private static final List<String> EXTENDED_CHARACTERS =  Arrays
-            .asList("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789*$£%)([]!=+-_:/;.><&".toCharArray())
-            .stream().map(Object::toString).collect(Collectors.toList());
+    private static final char[] EXTENDED_CHARACTERS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789*$£%)([]!=+-_:/;.><&".toCharArray();
 
-    private static final List<String> INIT_STRING = new ArrayList<String>() {{
-        for (int b = 0; b <= 15; b++) {
-            add(Integer.toHexString(b));
+    private static final byte[] CHARACTERS_BYTES = new String(CHARACTERS).getBytes(StandardCharsets.US_ASCII);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * UUID shape : 9-4-4-4-12 hex digits with the version digit set to 4
+     */
+    private static final char[] UUID_TEMPLATE = "xxxxxxxxx-xxxx-4xxx-xxxx-xxxxxxxxxxxx".toCharArray();
+
+    public static final int UUID_LENGTH = UUID_TEMPLATE.length;
+
+    private static final int UUID_VARIANT_POSITION = 20;
+
+    /**
+     * Index of the random nibble used at each UUID position, -1 for fixed characters
+     */
+    private static final int[] UUID_NIBBLES = new int[UUID_LENGTH];
+
+    static {
+        for (int c = 0, nibble = 0; c < UUID_LENGTH; c++) {
+            UUID_NIBBLES[c] = UUID_TEMPLATE[c] == 'x' ? nibble++ : -1;
         }
-    }};
+    }
 
-    private static final Random RANDOM = new Random();
+    private static char uuidChar(int position, long high, long low) {
+        int nibble = UUID_NIBBLES[position];
+        if (nibble < 0) {
+            return UUID_TEMPLATE[position];
+        }
+        int value = (int) ((nibble < 16 ? high >>> (nibble << 2) : low >>> ((nibble - 16) << 2)) & 0xF);
+        if (position == UUID_VARIANT_POSITION) {
+            value = (value & 0x3) | 0x8;
+        }
+        return HEX[value];
+    }
 
     public static String generateUUID() {
-        StringBuilder builder = new StringBuilder();
-        for (int c = 0; c <= 36; c++) {
-            if (c == 9 || c == 14 || c == 19 || c == 24) {
-                builder.append("-");
-            } else {
-                if (c == 15) {
-                    builder.append("4");
-                } else {
-                    if (c == 20) {
-                        Double rand = RANDOM.nextDouble() * 4.0;
-                        builder.append(INIT_STRING.get(rand.intValue() | 8));
-                    } else {
-                        Double rand = RANDOM.nextDouble() * 15.0;
-                        builder.append(INIT_STRING.get(rand.intValue() | 0));
-                    }
-                }
-            }
+        char[] chars = new char[UUID_LENGTH];
+        generateUUID(chars, 0);
+        return new String(chars);
+    }
+
+    public static void generateUUID(char[] target, int offset) {
+        Invariant.invariant(offset >= 0 && offset + UUID_LENGTH <= target.length, "Not enough room in target array");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = random.nextLong();
+        long low = random.nextLong();
+        for (int c = 0; c < UUID_LENGTH; c++) {
+            target[offset + c] = uuidChar(c, high, low);
+        }
+    }
+
+    public static void generateUUID(StringBuilder target) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = random.nextLong();
+        long low = random.nextLong();
+        for (int c = 0; c < UUID_LENGTH; c++) {
+            target.append(uuidChar(c, high, low));
+        }
+    }
+
+    /**
+     * Writes the UUID as US-ASCII bytes at the buffer position
+     */
+    public static void generateUUID(ByteBuffer target) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = random.nextLong();
+        long low = random.nextLong();
+        for (int c = 0; c < UUID_LENGTH; c++) {
+            target.put((byte) uuidChar(c, high, low));
         }
-        return builder.toString();
     }
 
     public static String generateToken(List<String> characters, int size) {
-        StringBuilder builder = new StringBuilder();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = characters.size();
+        StringBuilder builder = new StringBuilder(size);
         for (int i = 0; i < size; i++) {
-            Integer rand = RANDOM.nextInt(characters.size());
-            builder.append(characters.get(rand));
+            builder.append(characters.get(random.nextInt(count)));
         }
         return builder.toString();
     }
 
+    public static String generateToken(char[] characters, int size) {
+        char[] chars = new char[size];
+        generateToken(characters, size, chars, 0);
+        return new String(chars);
+    }
+
+    public static void generateToken(char[] characters, int size, char[] target, int offset) {
+        Invariant.invariant(offset >= 0 && offset + size <= target.length, "Not enough room in target array");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = characters.length;
+        for (int i = 0; i < size; i++) {
+            target[offset + i] = characters[random.nextInt(count)];
+        }
+    }
+
+    public static void generateToken(char[] characters, int size, StringBuilder target) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = characters.length;
+        for (int i = 0; i < size; i++) {
+            target.append(characters[random.nextInt(count)]);
+        }
+    }
+
+    /**
+     * Writes a token of `size` alphanumeric US-ASCII bytes at the buffer position
+     */
+    public static void generateToken(int size, ByteBuffer target) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int count = CHARACTERS_BYTES.length;
+        for (int i = 0; i < size; i++) {
+            target.put(CHARACTERS_BYTES[random.nextInt(count)]);
+        }
+    }
+
     public static String generateToken(int size) {
         return generateToken(CHARACTERS, size);
     }
@@ -75,37 +155,415 @@ public class IdGenerators {
         return generateToken(EXTENDED_CHARACTERS, 64);
     }
 
+    /**
+     * Per thread buffer of `SecureRandom` bytes, refilled in large batches so each token doesn't pay for a
+     * `SecureRandom` call per character.
+     */
+    private static class EntropyPool {
+
+        private static final int SIZE = 4096;
+
+        private final SecureRandom random = new SecureRandom();
+        private final byte[] buffer = new byte[SIZE];
+        private int position = SIZE;
+
+        int nextByte() {
+            if (position == SIZE) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            return buffer[position++] & 0xFF;
+        }
+    }
+
+    private static final ThreadLocal<EntropyPool> ENTROPY = ThreadLocal.withInitial(EntropyPool::new);
+
+    /**
+     * Cryptographically secure token. Random bytes are masked to the smallest power of two covering the alphabet
+     * and out of range values are dropped, so every character has the same probability (no modulo bias).
+     */
+    public static void generateSecureToken(char[] characters, int size, char[] target, int offset) {
+        Invariant.invariant(characters.length > 0 && characters.length <= 256, "Alphabet should have between 1 and 256 characters");
+        Invariant.invariant(offset >= 0 && offset + size <= target.length, "Not enough room in target array");
+        EntropyPool pool = ENTROPY.get();
+        int count = characters.length;
+        int mask = count == 1 ? 0 : (Integer.highestOneBit(count - 1) << 1) - 1;
+        for (int i = 0; i < size; ) {
+            int value = pool.nextByte() & mask;
+            if (value < count) {
+                target[offset + i++] = characters[value];
+            }
+        }
+    }
+
+    public static String generateSecureToken(char[] characters, int size) {
+        char[] chars = new char[size];
+        generateSecureToken(characters, size, chars, 0);
+        return new String(chars);
+    }
+
+    public static String generateSecureToken(int size) {
+        return generateSecureToken(CHARACTERS, size);
+    }
+
+    public static String generateSecureToken() {
+        return generateSecureToken(64);
+    }
+
+    public static String generateSecureExtendedToken(int size) {
+        return generateSecureToken(EXTENDED_CHARACTERS, size);
+    }
+
+    public static String generateSecureExtendedToken() {
+        return generateSecureToken(EXTENDED_CHARACTERS, 64);
+    }
+
+    public static final int UUID_V7_LENGTH = 36;
+
+    /**
+     * Last UUIDv7 unix timestamp and 12 bits counter (rand_a) packed in a single word, keeps UUIDv7 monotonic
+     */
+    private static final AtomicLong lastUuidV7TimestampAndCounter = new AtomicLong(0L);
+
+    /**
+     * Time ordered UUID (RFC 9562 version 7) : 48 bits of unix timestamp in millis, a 12 bits counter so UUIDs
+     * of the same millisecond stay ordered, then 62 random bits.
+     */
+    public static UUID generateUUIDv7Value() {
+        return new UUID(nextUuidV7MostSignificantBits(), nextUuidV7LeastSignificantBits());
+    }
+
+    public static String generateUUIDv7() {
+        char[] chars = new char[UUID_V7_LENGTH];
+        generateUUIDv7(chars, 0);
+        return new String(chars);
+    }
+
+    public static void generateUUIDv7(char[] target, int offset) {
+        Invariant.invariant(offset >= 0 && offset + UUID_V7_LENGTH <= target.length, "Not enough room in target array");
+        long high = nextUuidV7MostSignificantBits();
+        long low = nextUuidV7LeastSignificantBits();
+        for (int c = 0; c < UUID_V7_LENGTH; c++) {
+            target[offset + c] = uuidV7Char(c, high, low);
+        }
+    }
+
+    public static void generateUUIDv7(StringBuilder target) {
+        long high = nextUuidV7MostSignificantBits();
+        long low = nextUuidV7LeastSignificantBits();
+        for (int c = 0; c < UUID_V7_LENGTH; c++) {
+            target.append(uuidV7Char(c, high, low));
+        }
+    }
+
+    private static long nextUuidV7MostSignificantBits() {
+        long last;
+        long next;
+        do {
+            last = lastUuidV7TimestampAndCounter.get();
+            // when the counter is exhausted the carry moves to the next millisecond
+            next = Math.max(clock.currentTimeMillis() << 12, last + 1L);
+        } while (!lastUuidV7TimestampAndCounter.compareAndSet(last, next));
+        return ((next >>> 12) << 16) | 0x7000L | (next & 0xFFFL);
+    }
+
+    private static long nextUuidV7LeastSignificantBits() {
+        return (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+    }
+
+    private static char uuidV7Char(int position, long high, long low) {
+        if (position == 8 || position == 13 || position == 18 || position == 23) {
+            return '-';
+        }
+        // hex digits before the position, from the most significant nibble
+        int nibble = position - (position > 23 ? 4 : position > 18 ? 3 : position > 13 ? 2 : position > 8 ? 1 : 0);
+        long bits = nibble < 16 ? high >>> ((15 - nibble) << 2) : low >>> ((31 - nibble) << 2);
+        return HEX[(int) (bits & 0xF)];
+    }
+
+    /**
+     * Base 62 alphabet in US-ASCII order so encoded ids sort like the unsigned longs they encode
+     */
+    private static final char[] SORTABLE_CHARACTERS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private static final byte[] SORTABLE_VALUES = new byte[128];
+
+    public static final int SORTABLE_ID_LENGTH = 11;
+
+    private static final long MAX_SORTABLE_PREFIX = Long.divideUnsigned(-1L, 62L);
+
+    static {
+        Arrays.fill(SORTABLE_VALUES, (byte) -1);
+        for (int i = 0; i < SORTABLE_CHARACTERS.length; i++) {
+            SORTABLE_VALUES[SORTABLE_CHARACTERS[i]] = (byte) i;
+        }
+    }
+
+    /**
+     * Encodes `id`, read as an unsigned long, on 11 base 62 characters. Encoded ids sort lexicographically in the
+     * same order as the ids.
+     */
+    public static void encodeSortable(long id, char[] target, int offset) {
+        Invariant.invariant(offset >= 0 && offset + SORTABLE_ID_LENGTH <= target.length, "Not enough room in target array");
+        long value = id;
+        for (int i = SORTABLE_ID_LENGTH - 1; i >= 0; i--) {
+            target[offset + i] = SORTABLE_CHARACTERS[(int) Long.remainderUnsigned(value, 62L)];
+            value = Long.divideUnsigned(value, 62L);
+        }
+    }
+
+    public static void encodeSortable(long id, StringBuilder target) {
+        int start = target.length();
+        target.setLength(start + SORTABLE_ID_LENGTH);
+        long value = id;
+        for (int i = SORTABLE_ID_LENGTH - 1; i >= 0; i--) {
+            target.setCharAt(start + i, SORTABLE_CHARACTERS[(int) Long.remainderUnsigned(value, 62L)]);
+            value = Long.divideUnsigned(value, 62L);
+        }
+    }
+
+    public static String encodeSortable(long id) {
+        char[] chars = new char[SORTABLE_ID_LENGTH];
+        encodeSortable(id, chars, 0);
+        return new String(chars);
+    }
+
+    public static long decodeSortable(CharSequence encoded, int offset) {
+        Invariant.checkNotNull(encoded);
+        Invariant.invariant(offset >= 0 && offset + SORTABLE_ID_LENGTH <= encoded.length(), "Sortable id should have " + SORTABLE_ID_LENGTH + " characters");
+        long value = 0L;
+        for (int i = 0; i < SORTABLE_ID_LENGTH; i++) {
+            char c = encoded.charAt(offset + i);
+            int digit = c < 128 ? SORTABLE_VALUES[c] : -1;
+            Invariant.invariant(digit >= 0, "Invalid character in sortable id");
+            Invariant.invariant(Long.compareUnsigned(value, MAX_SORTABLE_PREFIX) <= 0, "Sortable id overflows a long");
+            long shifted = value * 62L;
+            value = shifted + digit;
+            Invariant.invariant(Long.compareUnsigned(value, shifted) >= 0, "Sortable id overflows a long");
+        }
+        return value;
+    }
+
+    public static long decodeSortable(CharSequence encoded) {
+        Invariant.checkNotNull(encoded);
+        Invariant.invariant(encoded.length() == SORTABLE_ID_LENGTH, "Sortable id should have " + SORTABLE_ID_LENGTH + " characters");
+        return decodeSortable(encoded, 0);
+    }
+
+    private static final long SEQUENCE_BITS = 12L;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1L;
+    private static final long GENERATOR_BITS = 10L;
+    private static final long MAX_GENERATOR_ID = (1L << GENERATOR_BITS) - 1L;
+    private static final long TIMESTAMP_SHIFT = GENERATOR_BITS + SEQUENCE_BITS;
+
     private static final AtomicLong generatorId = new AtomicLong(1L);
+    private static volatile Clock clock = Clock.system();
     private static final Long minus = 1288834974657L;
-    private static final AtomicLong counter = new AtomicLong(-1L);
-    private static final AtomicLong lastTimestamp = new AtomicLong(-1L);
+    /**
+     * Last issued timestamp and sequence packed in a single word (timestamp << 12 | sequence)
+     * so both are updated by one CAS. Starts at sequence 4095 so the first id gets sequence 0.
+     */
+    private static final AtomicLong lastTimestampAndCounter = new AtomicLong(SEQUENCE_MASK);
 
     public static void setGeneratorId(Long value) {
         generatorId.set(value);
     }
 
-    public static synchronized Long generateUniqueId() {
-        if (generatorId.get() > 1024L) {
-            throw new RuntimeException("Generator id can't be larger than 1024");
+    /**
+     * Clock used by `generateUniqueId`, `reserve` and `generateUUIDv7`, `Clock.system()` by default
+     */
+    public static void setClock(Clock value) {
+        Invariant.checkNotNull(value);
+        clock = value;
+    }
+
+    public static Long generateUniqueId() {
+        long generator = generatorId.get();
+        if (generator > MAX_GENERATOR_ID) {
+            throw new RuntimeException("Generator id can't be larger than " + MAX_GENERATOR_ID);
+        }
+        while (true) {
+            long last = lastTimestampAndCounter.get();
+            long timestamp = clock.currentTimeMillis();
+            if (timestamp < (last >>> SEQUENCE_BITS)) {
+                throw new RuntimeException("Clock is running backward. Sorry :-(");
+            }
+            long counter = (last + 1L) & SEQUENCE_MASK;
+            if (counter == 0L && timestamp == (last >>> SEQUENCE_BITS)) {
+                // sequence ceiling reached for this millisecond, same rule as reserve
+                Thread.yield();
+                continue;
+            }
+            if (lastTimestampAndCounter.compareAndSet(last, (timestamp << SEQUENCE_BITS) | counter)) {
+                return ((timestamp - minus) << TIMESTAMP_SHIFT) | (generator << SEQUENCE_BITS) | counter;
+            }
+        }
+    }
+
+    /**
+     * Creation time of an id from `uniqueId()` in milliseconds since the unix epoch
+     */
+    public static long timestampOf(long id) {
+        return IdGenerator.Layout.DEFAULT.timestampOf(id);
+    }
+
+    public static long generatorIdOf(long id) {
+        return IdGenerator.Layout.DEFAULT.nodeIdOf(id);
+    }
+
+    public static long sequenceOf(long id) {
+        return IdGenerator.Layout.DEFAULT.sequenceOf(id);
+    }
+
+    /**
+     * Bounds of the `uniqueId()` values issued between `from` and `to` (milliseconds since the unix epoch, both inclusive)
+     */
+    public static IdGenerator.IdRange idRange(long from, long to) {
+        return IdGenerator.Layout.DEFAULT.range(from, to);
+    }
+
+    public static IdGenerator.IdRange idRange(Instant from, Instant to) {
+        return IdGenerator.Layout.DEFAULT.range(from, to);
+    }
+
+    /**
+     * Bounds of the `uniqueId()` values issued during the last `window`, read from the clock set by `setClock`
+     */
+    public static IdGenerator.IdRange idRangeOfLast(Duration window) {
+        return IdGenerator.Layout.DEFAULT.rangeOfLast(window, clock);
+    }
+
+    /**
+     * Reserves `count` unique ids in one go and writes them in `target` starting at `offset`.
+     * <p/>
+     * Each millisecond is claimed with a single CAS. A reservation never wraps the 12 bits sequence inside
+     * a millisecond: when it reaches 4095 it waits for the next millisecond and goes on from 0, so ids stay
+     * unique and time ordered.
+     */
+    public static void reserve(long[] target, int offset, int count) {
+        Invariant.checkNotNull(target);
+        Invariant.invariant(count >= 0, "Count should be positive");
+        Invariant.invariant(offset >= 0 && offset + count <= target.length, "Not enough room in target array");
+        long generator = generatorId.get();
+        if (generator > MAX_GENERATOR_ID) {
+            throw new RuntimeException("Generator id can't be larger than " + MAX_GENERATOR_ID);
+        }
+        int filled = 0;
+        while (filled < count) {
+            long last = lastTimestampAndCounter.get();
+            long lastTimestamp = last >>> SEQUENCE_BITS;
+            long timestamp = clock.currentTimeMillis();
+            if (timestamp < lastTimestamp) {
+                throw new RuntimeException("Clock is running backward. Sorry :-(");
+            }
+            long first = (last + 1L) & SEQUENCE_MASK;
+            if (first == 0L && timestamp == lastTimestamp) {
+                // sequence ceiling reached for this millisecond
+                Thread.yield();
+                continue;
+            }
+            int taken = (int) Math.min(SEQUENCE_MASK + 1L - first, count - filled);
+            long counter = first + taken - 1L;
+            if (lastTimestampAndCounter.compareAndSet(last, (timestamp << SEQUENCE_BITS) | counter)) {
+                long base = ((timestamp - minus) << TIMESTAMP_SHIFT) | (generator << SEQUENCE_BITS);
+                for (int i = 0; i < taken; i++) {
+                    target[offset + filled + i] = base | (first + i);
+                }
+                filled += taken;
+            }
+        }
+    }
+
+    public static long[] reserve(int count) {
+        long[] ids = new long[count];
+        reserve(ids, 0, count);
+        return ids;
+    }
+
+    public static LongStream reserveStream(int count) {
+        return LongStream.of(reserve(count));
+    }
+
+    /**
+     * Reusable cursor over a block of reserved ids. Not thread safe, keep one per thread.
+     */
+    public static class IdBlock {
+
+        private long[] ids;
+        private int size = 0;
+        private int position = 0;
+
+        public IdBlock() {
+            this(0);
+        }
+
+        public IdBlock(int capacity) {
+            this.ids = new long[capacity];
+        }
+
+        /**
+         * Drops the remaining ids of the block and reserves `count` new ones.
+         */
+        public IdBlock reserve(int count) {
+            if (ids.length < count) {
+                ids = new long[count];
+            }
+            IdGenerators.reserve(ids, 0, count);
+            size = count;
+            position = 0;
+            return this;
+        }
+
+        public boolean hasNext() {
+            return position < size;
+        }
+
+        public long next() {
+            if (position >= size) {
+                throw new IllegalStateException("No more reserved ids in block");
+            }
+            return ids[position++];
+        }
+
+        public long get(int index) {
+            Invariant.invariant(index >= 0 && index < size, "Index out of block");
+            return ids[index];
+        }
+
+        public int size() {
+            return size;
         }
-        Long timestamp = System.currentTimeMillis();
-        if (timestamp < lastTimestamp.get()) {
-            throw new RuntimeException("Clock is running backward. Sorry :-(");
+
+        public int remaining() {
+            return size - position;
         }
-        lastTimestamp.set(timestamp);
-        counter.compareAndSet(4095, -1L);
-        return ((timestamp - minus) << 22L) | (generatorId.get() << 10L) | counter.incrementAndGet();
+    }
+
+    public static IdBlock reserveBlock(int count) {
+        return new IdBlock(count).reserve(count);
     }
 
     public static String uuid() {
         return generateUUID();
     }
 
+    public static String uuidV7() {
+        return generateUUIDv7();
+    }
+
+    /**
+     * `uniqueId()` encoded as a lexicographically sortable string
+     */
+    public static String sortableUniqueId() {
+        return encodeSortable(generateUniqueId());
+    }
+
     public static String token(List<String> characters, int size) {
         return generateToken(characters, size);
     }
 
-    public static synchronized Long uniqueId() {
+    public static Long uniqueId() {
         return generateUniqueId();
     }
 
@@ -125,4 +583,19 @@ public class IdGenerators {
         return generateExtendedToken();
     }
 
+    public static String secureToken(int size) {
+        return generateSecureToken(size);
+    }
+
+    public static String secureToken() {
+        return generateSecureToken();
+    }
+
+    public static String secureLongToken(int size) {
+        return generateSecureExtendedToken(size);
+    }
+
+    public static String secureLongToken() {
+        return generateSecureExtendedToken();
+    }
 }
@@ -0,0 +1,292 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear latency histogram in nanoseconds, in the spirit of HdrHistogram.
+ * <p/>
+ * Values are counted in buckets whose width doubles every power of two, each bucket being split in linear
+ * sub-buckets sized so any recorded value is known with `significantDigits` decimal digits of precision.
+ * Recording is one index computation and one atomic increment, without lock nor allocation.
+ * <p/>
+ * * LatencyHistogram histogram = LatencyHistogram.of(Duration.of("1 min"), 2);
+ * * long start = histogram.start(); ... ; histogram.recordSince(start);
+ * * Duration.measureNanos() ... .recordTo(histogram)
+ * * histogram.snapshotAndReset().p99()
+ */
+public class LatencyHistogram {
+
+    private final long highestTrackableValue;
+    private final int significantDigits;
+    private final int subBucketHalfCountMagnitude;
+    private final int subBucketHalfCount;
+    private final long subBucketMask;
+    private final int leadingZeroCountBase;
+    private final AtomicLongArray counts;
+    private final AtomicLong maxValue = new AtomicLong(0L);
+
+    private LatencyHistogram(long highestTrackableValue, int significantDigits) {
+        Invariant.invariant(highestTrackableValue >= 2L, "Highest trackable value should be at least 2 nanos");
+        Invariant.invariant(significantDigits >= 1 && significantDigits <= 5, "Significant digits should be between 1 and 5");
+        this.highestTrackableValue = highestTrackableValue;
+        this.significantDigits = significantDigits;
+        long largestValueWithSingleUnitResolution = 2L * (long) Math.pow(10, significantDigits);
+        int subBucketCountMagnitude = 64 - Long.numberOfLeadingZeros(largestValueWithSingleUnitResolution - 1L);
+        this.subBucketHalfCountMagnitude = Math.max(subBucketCountMagnitude, 1) - 1;
+        int subBucketCount = 1 << (subBucketHalfCountMagnitude + 1);
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.subBucketMask = subBucketCount - 1L;
+        this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+        int bucketCount = 1;
+        long smallestUntrackableValue = subBucketCount;
+        while (smallestUntrackableValue <= highestTrackableValue) {
+            if (smallestUntrackableValue > Long.MAX_VALUE / 2L) {
+                bucketCount++;
+                break;
+            }
+            smallestUntrackableValue <<= 1;
+            bucketCount++;
+        }
+        this.counts = new AtomicLongArray((bucketCount + 1) * subBucketHalfCount);
+    }
+
+    /**
+     * Histogram tracking up to one hour with 2 significant digits
+     */
+    public static LatencyHistogram of() {
+        return new LatencyHistogram(TimeUnit.HOURS.toNanos(1L), 2);
+    }
+
+    public static LatencyHistogram of(Duration highestTrackableValue, int significantDigits) {
+        return new LatencyHistogram(highestTrackableValue.toNanos(), significantDigits);
+    }
+
+    /**
+     * Start of a timed section, to be passed to `recordSince`
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since `start` and returns it in nanoseconds
+     */
+    public long recordSince(long start) {
+        long elapsed = System.nanoTime() - start;
+        record(elapsed);
+        return elapsed;
+    }
+
+    public void record(Duration duration) {
+        record(duration.toNanos());
+    }
+
+    /**
+     * Records a value in nanoseconds, values above the highest trackable value are recorded as that value
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0L), highestTrackableValue);
+        counts.incrementAndGet(indexOf(value));
+        raiseMax(value);
+    }
+
+    private void raiseMax(long value) {
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    /**
+     * Point in time copy of the histogram, recording goes on meanwhile. The max of a snapshot is kept within the
+     * sub-bucket of its highest counted value, so values recorded during the copy can't make it inconsistent.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, maxValue.get());
+    }
+
+    /**
+     * Same as `snapshot()`, copying the counts into `recycled` instead of a new array when it is a snapshot of this
+     * histogram. Meant for periodic reporters : `recycled` is overwritten and must not be used anymore.
+     */
+    public Snapshot snapshot(Snapshot recycled) {
+        if (recycled == null || recycled.histogram() != this) {
+            return snapshot();
+        }
+        for (int i = 0; i < recycled.counts.length; i++) {
+            recycled.counts[i] = counts.get(i);
+        }
+        recycled.update(maxValue.get());
+        return recycled;
+    }
+
+    /**
+     * Copies and clears the histogram for interval reporting. Values recorded while the snapshot is taken go
+     * either to this snapshot or to the next one, never lost, and the max goes along with the count.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] copy = new long[counts.length()];
+        int highest = -1;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.getAndSet(i, 0L);
+            if (copy[i] != 0L) {
+                highest = i;
+            }
+        }
+        // the counts are drained first : a max above every drained value was counted in the next interval
+        long max = maxValue.getAndSet(0L);
+        if (highest < 0 || max > highestValueAt(highest)) {
+            raiseMax(max);
+        }
+        return new Snapshot(copy, max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+        maxValue.set(0L);
+    }
+
+    public final long highestTrackableValue() {
+        return highestTrackableValue;
+    }
+
+    public final int significantDigits() {
+        return significantDigits;
+    }
+
+    private int indexOf(long value) {
+        int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(value | subBucketMask);
+        int subBucketIndex = (int) (value >>> bucketIndex);
+        return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+    }
+
+    /**
+     * Highest value counted in the same sub-bucket as index
+     */
+    private long highestValueAt(int index) {
+        int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+        int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+        if (bucketIndex < 0) {
+            subBucketIndex -= subBucketHalfCount;
+            bucketIndex = 0;
+        }
+        return ((long) subBucketIndex << bucketIndex) + (1L << bucketIndex) - 1L;
+    }
+
+    /**
+     * Lowest value counted in the same sub-bucket as index
+     */
+    private long lowestValueAt(int index) {
+        int bucketIndex = Math.max((index >> subBucketHalfCountMagnitude) - 1, 0);
+        return highestValueAt(index) - (1L << bucketIndex) + 1L;
+    }
+
+    public class Snapshot {
+
+        private final long[] counts;
+        private long totalCount;
+        private long max;
+
+        Snapshot(long[] counts, long max) {
+            this.counts = counts;
+            update(max);
+        }
+
+        private void update(long max) {
+            long total = 0L;
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                if (counts[i] != 0L) {
+                    highest = i;
+                }
+            }
+            this.totalCount = total;
+            this.max = highest < 0 ? 0L : Math.max(lowestValueAt(highest), Math.min(max, highestValueAt(highest)));
+        }
+
+        private LatencyHistogram histogram() {
+            return LatencyHistogram.this;
+        }
+
+        public long count() {
+            return totalCount;
+        }
+
+        /**
+         * Value in nanoseconds below which `percentile` percents of the recorded values fall
+         */
+        public long valueAtPercentile(double percentile) {
+            Invariant.invariant(percentile >= 0.0 && percentile <= 100.0, "Percentile should be between 0 and 100");
+            if (totalCount == 0L) {
+                return 0L;
+            }
+            long countAtPercentile = Math.max(1L, (long) Math.ceil(percentile / 100.0 * totalCount));
+            long seen = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= countAtPercentile) {
+                    return Math.min(highestValueAt(i), max);
+                }
+            }
+            return max;
+        }
+
+        public Duration percentile(double percentile) {
+            return Duration.of(valueAtPercentile(percentile), TimeUnit.NANOSECONDS);
+        }
+
+        public Duration p50() {
+            return percentile(50.0);
+        }
+
+        public Duration p90() {
+            return percentile(90.0);
+        }
+
+        public Duration p99() {
+            return percentile(99.0);
+        }
+
+        public Duration p999() {
+            return percentile(99.9);
+        }
+
+        public Duration max() {
+            return Duration.of(max, TimeUnit.NANOSECONDS);
+        }
+
+        public Duration mean() {
+            if (totalCount == 0L) {
+                return Duration.of(0L, TimeUnit.NANOSECONDS);
+            }
+            double sum = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0L) {
+                    sum += (double) counts[i] * Math.min(highestValueAt(i), max);
+                }
+            }
+            return Duration.of((long) (sum / totalCount), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot { " +
+                    "count = " + totalCount +
+                    ", p50 = " + valueAtPercentile(50.0) + " ns" +
+                    ", p90 = " + valueAtPercentile(90.0) + " ns" +
+                    ", p99 = " + valueAtPercentile(99.0) + " ns" +
+                    ", p999 = " + valueAtPercentile(99.9) + " ns" +
+                    ", max = " + max + " ns" +
+                    " }";
+        }
+    }
+}
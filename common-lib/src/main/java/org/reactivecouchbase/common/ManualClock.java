@@ -0,0 +1,61 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clock for tests : time only moves through `advance` and `set`. The wall clock can be moved backward to
+ * simulate clock steps, the monotonic time can't.
+ * <p/>
+ * * ManualClock clock = Clock.manual(0L);
+ * * clock.advance(Duration.of("5 s"));
+ */
+public class ManualClock extends Clock {
+
+    private final AtomicLong nanos;
+    private final AtomicLong offsetMillis;
+
+    ManualClock(long currentTimeMillis) {
+        this.nanos = new AtomicLong(0L);
+        this.offsetMillis = new AtomicLong(currentTimeMillis);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return offsetMillis.get() + TimeUnit.NANOSECONDS.toMillis(nanos.get());
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanos.get();
+    }
+
+    /**
+     * Moves both the wall clock and the monotonic time forward
+     */
+    public ManualClock advance(Duration duration) {
+        return advance(duration.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    public ManualClock advance(long value, TimeUnit unit) {
+        Invariant.invariant(value >= 0L, "Time can only move forward, use set to move the wall clock backward");
+        nanos.addAndGet(unit.toNanos(value));
+        return this;
+    }
+
+    /**
+     * Sets the wall clock, possibly in the past, without touching the monotonic time
+     */
+    public ManualClock set(long currentTimeMillis) {
+        offsetMillis.set(currentTimeMillis - TimeUnit.NANOSECONDS.toMillis(nanos.get()));
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "ManualClock { " +
+                "currentTimeMillis = " + currentTimeMillis() +
+                ", nanoTime = " + nanoTime() +
+                " }";
+    }
+}
@@ -0,0 +1,115 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Number of distinct values seen per sample interval, with the windows of `MeasuredRate`.
+ * <p/>
+ * Each interval gets its own `HyperLogLog` : adds are lock-free and the memory stays bounded whatever the number
+ * of distinct values. `getCount()` estimates the last complete interval, `getCurrentCount()` the one in progress.
+ * The sketch of the last interval can be shipped with `lastSketch().toBytes()` and merged with other nodes'.
+ * <p/>
+ * * MeasuredDistinctCount users = MeasuredDistinctCount.of(Duration.of("1 min"));
+ * * users.add(userId);
+ * * users.getCount()
+ */
+public class MeasuredDistinctCount {
+
+    private static class Windows {
+        final HyperLogLog current;
+        final long end;
+        final HyperLogLog last;
+
+        Windows(HyperLogLog current, long end, HyperLogLog last) {
+            this.current = current;
+            this.end = end;
+            this.last = last;
+        }
+    }
+
+    private final long sampleInterval;
+    private final int precision;
+    private final Clock clock;
+    private final HyperLogLog empty;
+    private final AtomicReference<Windows> windows;
+
+    private MeasuredDistinctCount(long sampleInterval, int precision, Clock clock) {
+        Invariant.invariant(sampleInterval > 0L, "Sample interval should be positive");
+        Invariant.checkNotNull(clock);
+        this.sampleInterval = sampleInterval;
+        this.precision = precision;
+        this.clock = clock;
+        this.empty = HyperLogLog.of(precision);
+        this.windows = new AtomicReference<>(new Windows(HyperLogLog.of(precision), clock.currentTimeMillis() + sampleInterval, empty));
+    }
+
+    public static MeasuredDistinctCount of(Duration duration) {
+        return new MeasuredDistinctCount(duration.toMillis(), 14, Clock.cached());
+    }
+
+    public static MeasuredDistinctCount of(Duration duration, int precision) {
+        return new MeasuredDistinctCount(duration.toMillis(), precision, Clock.cached());
+    }
+
+    public static MeasuredDistinctCount of(Duration duration, int precision, Clock clock) {
+        return new MeasuredDistinctCount(duration.toMillis(), precision, clock);
+    }
+
+    public void add(long value) {
+        checkAndResetWindow().current.add(value);
+    }
+
+    public void add(CharSequence value) {
+        checkAndResetWindow().current.add(value);
+    }
+
+    /**
+     * Returns the estimated number of distinct values in the last sample interval
+     */
+    public long getCount() {
+        return checkAndResetWindow().last.estimate();
+    }
+
+    /**
+     * Returns the estimated number of distinct values in the current sample interval which will be incomplete.
+     */
+    public long getCurrentCount() {
+        return checkAndResetWindow().current.estimate();
+    }
+
+    /**
+     * Copy of the sketch of the last sample interval, to be merged or serialized
+     */
+    public HyperLogLog lastSketch() {
+        return checkAndResetWindow().last.copy();
+    }
+
+    public void reset() {
+        windows.set(new Windows(HyperLogLog.of(precision), clock.currentTimeMillis() + sampleInterval, empty));
+    }
+
+    public final long sampleInterval() {
+        return sampleInterval;
+    }
+
+    private Windows checkAndResetWindow() {
+        long now = clock.currentTimeMillis();
+        Windows current = windows.get();
+        while (now >= current.end) {
+            // skip the windows without any activity
+            long elapsed = (now - current.end) / sampleInterval;
+            HyperLogLog last = elapsed == 0L ? current.current : empty;
+            Windows next = new Windows(HyperLogLog.of(precision), current.end + (elapsed + 1L) * sampleInterval, last);
+            if (windows.compareAndSet(current, next)) {
+                return next;
+            }
+            current = windows.get();
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return "count:" + getCount() + "currentCount:" + getCurrentCount();
+    }
+}
@@ -0,0 +1,501 @@
+package org.reactivecouchbase.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Named meters, histograms and gauges, collected in point in time snapshots.
+ * <p/>
+ * `collect()` reads each metric once, through its lock-free accessors, while writers keep going : every series
+ * of a snapshot is self consistent and all of them are taken within the same collection pass. Snapshots hold
+ * their values in flat primitive arrays and write themselves to an `Appendable` or a `ByteBuffer` in Prometheus
+ * text format or JSON without building a string per series.
+ * <p/>
+ * Names are exported with the characters Prometheus doesn't accept replaced by `_` and a suffix per series, so
+ * registering a metric that would export the same series as another one fails : `a.b` and `a_b`, or a gauge
+ * `http_rate` and a meter `http`.
+ * <p/>
+ * * MetricsRegistry registry = MetricsRegistry.of();
+ * * EwmaMeter requests = registry.meter("http_requests");
+ * * registry.register("couchbase_ops", MeasuredRate.of(Duration.of("1 s")));
+ * * registry.collect().writePrometheus(writer);
+ */
+public class MetricsRegistry {
+
+    public enum Kind {
+        /**
+         * Any value read from a supplier
+         */
+        GAUGE(series(""), "value"),
+        /**
+         * `MeasuredRate`, `StripedMeasuredRate` or `RollingMeasuredRate` : events in the last sample interval and
+         * the matching rate per second
+         */
+        RATE(series("_count", "_rate"), "count", "rate"),
+        /**
+         * `EwmaMeter` : total count and rates per second
+         */
+        METER(series("_total", "_rate"), "count", "m1_rate", "m5_rate", "m15_rate", "mean_rate"),
+        /**
+         * `LatencyHistogram` : count and values in nanoseconds
+         */
+        HISTOGRAM(series("_seconds", "_seconds_sum", "_seconds_count", "_seconds_max"), "count", "sum", "mean", "max", "p50", "p90", "p99", "p999");
+
+        private final String type;
+        private final String[] series;
+        private final String[] fields;
+
+        Kind(String[] series, String... fields) {
+            this.type = name().toLowerCase();
+            this.series = series;
+            this.fields = fields;
+        }
+
+        private static String[] series(String... suffixes) {
+            return suffixes;
+        }
+
+        public final int size() {
+            return fields.length;
+        }
+
+        public final String field(int index) {
+            return fields[index];
+        }
+
+        public final int indexOf(String field) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i].equals(field)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private interface Source {
+        void collect(double[] values, int offset);
+    }
+
+    private static class Entry {
+        final String name;
+        final Kind kind;
+        final Object metric;
+        final Source source;
+
+        Entry(String name, Kind kind, Object metric, Source source) {
+            this.name = name;
+            this.kind = kind;
+            this.metric = metric;
+            this.source = source;
+        }
+    }
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    // entries by exported Prometheus series name, every series of an entry is claimed before it is added to entries
+    private final ConcurrentHashMap<String, Entry> exported = new ConcurrentHashMap<>();
+
+    private MetricsRegistry() {
+    }
+
+    public static MetricsRegistry of() {
+        return new MetricsRegistry();
+    }
+
+    /**
+     * Meter registered as `name`, created on first use
+     */
+    public EwmaMeter meter(String name) {
+        return (EwmaMeter) getOrCreate(name, Kind.METER, () -> meterEntry(name, EwmaMeter.of())).metric;
+    }
+
+    /**
+     * Histogram registered as `name`, created on first use with `LatencyHistogram.of()`
+     */
+    public LatencyHistogram histogram(String name) {
+        return (LatencyHistogram) getOrCreate(name, Kind.HISTOGRAM, () -> histogramEntry(name, LatencyHistogram.of())).metric;
+    }
+
+    public MeasuredRate register(String name, MeasuredRate rate) {
+        Invariant.checkNotNull(rate);
+        add(rateEntry(name, rate, rate::fastRate));
+        return rate;
+    }
+
+    public StripedMeasuredRate register(String name, StripedMeasuredRate rate) {
+        Invariant.checkNotNull(rate);
+        add(rateEntry(name, rate, rate::fastRate));
+        return rate;
+    }
+
+    public RollingMeasuredRate register(String name, RollingMeasuredRate rate) {
+        Invariant.checkNotNull(rate);
+        add(rateEntry(name, rate, rate::fastRate));
+        return rate;
+    }
+
+    public EwmaMeter register(String name, EwmaMeter meter) {
+        Invariant.checkNotNull(meter);
+        add(meterEntry(name, meter));
+        return meter;
+    }
+
+    public LatencyHistogram register(String name, LatencyHistogram histogram) {
+        Invariant.checkNotNull(histogram);
+        add(histogramEntry(name, histogram));
+        return histogram;
+    }
+
+    public void gauge(String name, DoubleSupplier gauge) {
+        Invariant.checkNotNull(gauge);
+        add(new Entry(name, Kind.GAUGE, gauge, (values, offset) -> values[offset] = gauge.getAsDouble()));
+    }
+
+    public boolean remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry == null) {
+            return false;
+        }
+        for (String key : exportedKeys(entry)) {
+            exported.remove(key, entry);
+        }
+        return true;
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Reads every registered metric once. Writers are never blocked.
+     */
+    public Snapshot collect() {
+        List<Entry> current = new ArrayList<>(entries.values());
+        int size = current.size();
+        String[] names = new String[size];
+        Kind[] kinds = new Kind[size];
+        int[] offsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            offsets[i + 1] = offsets[i] + current.get(i).kind.size();
+        }
+        double[] values = new double[offsets[size]];
+        for (int i = 0; i < size; i++) {
+            Entry entry = current.get(i);
+            names[i] = entry.name;
+            kinds[i] = entry.kind;
+            entry.source.collect(values, offsets[i]);
+        }
+        return new Snapshot(System.currentTimeMillis(), names, kinds, offsets, values);
+    }
+
+    private static Entry rateEntry(String name, Object rate, Supplier<MeasuredRate.FastRate> fastRate) {
+        return new Entry(name, Kind.RATE, rate, (values, offset) -> {
+            // count and rate from the same read of the counter
+            MeasuredRate.FastRate current = fastRate.get();
+            values[offset] = current.value;
+            values[offset + 1] = current.perSecond();
+        });
+    }
+
+    private static Entry meterEntry(String name, EwmaMeter meter) {
+        return new Entry(name, Kind.METER, meter, (values, offset) -> {
+            values[offset] = meter.count();
+            values[offset + 1] = meter.oneMinuteFastRate().perSecond();
+            values[offset + 2] = meter.fiveMinuteFastRate().perSecond();
+            values[offset + 3] = meter.fifteenMinuteFastRate().perSecond();
+            values[offset + 4] = meter.meanFastRate().perSecond();
+        });
+    }
+
+    private static Entry histogramEntry(String name, LatencyHistogram histogram) {
+        // the previous snapshot is recycled by the next collection, concurrent collections take a new one
+        AtomicReference<LatencyHistogram.Snapshot> spare = new AtomicReference<>();
+        return new Entry(name, Kind.HISTOGRAM, histogram, (values, offset) -> {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot(spare.getAndSet(null));
+            long mean = snapshot.mean().toNanos();
+            values[offset] = snapshot.count();
+            values[offset + 1] = (double) mean * snapshot.count();
+            values[offset + 2] = mean;
+            values[offset + 3] = snapshot.max().toNanos();
+            values[offset + 4] = snapshot.valueAtPercentile(50.0);
+            values[offset + 5] = snapshot.valueAtPercentile(90.0);
+            values[offset + 6] = snapshot.valueAtPercentile(99.0);
+            values[offset + 7] = snapshot.valueAtPercentile(99.9);
+            spare.set(snapshot);
+        });
+    }
+
+    private Entry getOrCreate(String name, Kind kind, Supplier<Entry> create) {
+        Invariant.checkNotNull(name);
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            Entry created = create.get();
+            Entry previous = claim(created);
+            entry = previous == null ? created : previous;
+        }
+        Invariant.invariant(entry.kind == kind, "Metric " + name + " is already registered as " + entry.kind);
+        return entry;
+    }
+
+    private void add(Entry entry) {
+        Entry previous = claim(entry);
+        Invariant.invariant(previous == null, "Metric " + entry.name + " is already registered");
+    }
+
+    /**
+     * Adds `entry` unless its name is already registered, returns the entry registered with that name in that case.
+     * Fails if any of the series it exports is already exported by another metric.
+     */
+    private Entry claim(Entry entry) {
+        Invariant.invariant(entry.name != null && !entry.name.isEmpty(), "Metric name can't be empty");
+        String[] keys = exportedKeys(entry);
+        for (int i = 0; i < keys.length; i++) {
+            Entry previous = exported.putIfAbsent(keys[i], entry);
+            if (previous != null) {
+                for (int j = 0; j < i; j++) {
+                    exported.remove(keys[j], entry);
+                }
+                Invariant.invariant(previous.name.equals(entry.name), "Metric " + entry.name + " would export " + keys[i] + " like " + previous.name);
+                return previous;
+            }
+        }
+        entries.put(entry.name, entry);
+        return null;
+    }
+
+    /**
+     * The registered name itself, prefixed by `#` which no series name contains, then every series exported for `entry`
+     */
+    private static String[] exportedKeys(Entry entry) {
+        String sanitized = sanitize(entry.name);
+        String[] series = entry.kind.series;
+        String[] keys = new String[series.length + 1];
+        keys[0] = "#" + entry.name;
+        for (int i = 0; i < series.length; i++) {
+            keys[i + 1] = sanitized + series[i];
+        }
+        return keys;
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            builder.append(sanitize(name.charAt(i), i));
+        }
+        return builder.toString();
+    }
+
+    private static char sanitize(char c, int index) {
+        boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (index > 0 && c >= '0' && c <= '9');
+        return valid ? c : '_';
+    }
+
+    /**
+     * Values of all the metrics at collection time, sorted by name
+     */
+    public static class Snapshot {
+
+        private final long timestamp;
+        private final String[] names;
+        private final Kind[] kinds;
+        private final int[] offsets;
+        private final double[] values;
+
+        private Snapshot(long timestamp, String[] names, Kind[] kinds, int[] offsets, double[] values) {
+            this.timestamp = timestamp;
+            this.names = names;
+            this.kinds = kinds;
+            this.offsets = offsets;
+            this.values = values;
+        }
+
+        /**
+         * Collection time in milliseconds since the unix epoch
+         */
+        public final long timestamp() {
+            return timestamp;
+        }
+
+        public final int size() {
+            return names.length;
+        }
+
+        public final String name(int index) {
+            return names[index];
+        }
+
+        public final Kind kind(int index) {
+            return kinds[index];
+        }
+
+        /**
+         * Value of the `field`th field of `kind(index)`
+         */
+        public final double value(int index, int field) {
+            Invariant.invariant(field >= 0 && field < kinds[index].size(), "No field " + field + " for " + kinds[index]);
+            return values[offsets[index] + field];
+        }
+
+        /**
+         * Index of the metric named `name`, or -1
+         */
+        public final int indexOf(String name) {
+            int low = 0;
+            int high = names.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int comparison = names[middle].compareTo(name);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Writes the snapshot in Prometheus text exposition format. Names are sanitized, rates are per second
+         * and histograms are exported as summaries in seconds.
+         */
+        public void writePrometheus(Appendable out) {
+            try {
+                for (int i = 0; i < names.length; i++) {
+                    int offset = offsets[i];
+                    switch (kinds[i]) {
+                        case GAUGE:
+                            type(out, names[i], null, "gauge");
+                            sample(out, names[i], null, null, values[offset], 6);
+                            break;
+                        case RATE:
+                            type(out, names[i], "_count", "gauge");
+                            sample(out, names[i], "_count", null, values[offset], 0);
+                            type(out, names[i], "_rate", "gauge");
+                            sample(out, names[i], "_rate", null, values[offset + 1], 6);
+                            break;
+                        case METER:
+                            type(out, names[i], "_total", "counter");
+                            sample(out, names[i], "_total", null, values[offset], 0);
+                            type(out, names[i], "_rate", "gauge");
+                            sample(out, names[i], "_rate", "window=\"1m\"", values[offset + 1], 6);
+                            sample(out, names[i], "_rate", "window=\"5m\"", values[offset + 2], 6);
+                            sample(out, names[i], "_rate", "window=\"15m\"", values[offset + 3], 6);
+                            sample(out, names[i], "_rate", "window=\"mean\"", values[offset + 4], 6);
+                            break;
+                        case HISTOGRAM:
+                            type(out, names[i], "_seconds", "summary");
+                            sample(out, names[i], "_seconds", "quantile=\"0.5\"", values[offset + 4] / NANOS_PER_SECOND, 9);
+                            sample(out, names[i], "_seconds", "quantile=\"0.9\"", values[offset + 5] / NANOS_PER_SECOND, 9);
+                            sample(out, names[i], "_seconds", "quantile=\"0.99\"", values[offset + 6] / NANOS_PER_SECOND, 9);
+                            sample(out, names[i], "_seconds", "quantile=\"0.999\"", values[offset + 7] / NANOS_PER_SECOND, 9);
+                            sample(out, names[i], "_seconds_sum", null, values[offset + 1] / NANOS_PER_SECOND, 9);
+                            sample(out, names[i], "_seconds_count", null, values[offset], 0);
+                            type(out, names[i], "_seconds_max", "gauge");
+                            sample(out, names[i], "_seconds_max", null, values[offset + 3] / NANOS_PER_SECOND, 9);
+                            break;
+                        default:
+                            throw new RuntimeException("Unsupported kind " + kinds[i]);
+                    }
+                }
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        /**
+         * Writes the snapshot as US-ASCII Prometheus text in `buffer`, throws `BufferOverflowException` if it doesn't fit
+         */
+        public void writePrometheus(ByteBuffer buffer) {
+            writePrometheus(Appendables.of(buffer));
+        }
+
+        /**
+         * Writes the snapshot as `{"timestamp":...,"metrics":{"name":{"type":"meter","count":...},...}}`.
+         * Non finite values are written as null.
+         */
+        public void writeJson(Appendable out) {
+            try {
+                out.append("{\"timestamp\":");
+                Appendables.appendLong(out, timestamp);
+                out.append(",\"metrics\":{");
+                for (int i = 0; i < names.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append('"');
+                    Appendables.appendJsonEscaped(out, names[i]);
+                    out.append("\":{\"type\":\"");
+                    out.append(kinds[i].type);
+                    out.append('"');
+                    for (int field = 0; field < kinds[i].size(); field++) {
+                        out.append(",\"").append(kinds[i].field(field)).append("\":");
+                        double value = values[offsets[i] + field];
+                        if (Double.isNaN(value) || Double.isInfinite(value)) {
+                            out.append("null");
+                        } else {
+                            Appendables.appendDecimal(out, value, 6);
+                        }
+                    }
+                    out.append('}');
+                }
+                out.append("}}");
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        /**
+         * Writes the snapshot as US-ASCII JSON in `buffer`, throws `BufferOverflowException` if it doesn't fit
+         */
+        public void writeJson(ByteBuffer buffer) {
+            writeJson(Appendables.of(buffer));
+        }
+
+        private static void type(Appendable out, String name, String suffix, String type) throws IOException {
+            out.append("# TYPE ");
+            name(out, name, suffix);
+            out.append(' ').append(type).append('\n');
+        }
+
+        private static void sample(Appendable out, String name, String suffix, String labels, double value, int fractionDigits) throws IOException {
+            name(out, name, suffix);
+            if (labels != null) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ');
+            Appendables.appendDecimal(out, value, fractionDigits);
+            out.append('\n');
+        }
+
+        private static void name(Appendable out, String name, String suffix) throws IOException {
+            for (int i = 0; i < name.length(); i++) {
+                out.append(sanitize(name.charAt(i), i));
+            }
+            if (suffix != null) {
+                out.append(suffix);
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            writeJson(builder);
+            return builder.toString();
+        }
+    }
+}
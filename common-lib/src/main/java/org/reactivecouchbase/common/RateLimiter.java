@@ -0,0 +1,171 @@
+package org.reactivecouchbase.common;
+
+import org.reactivecouchbase.functional.Unit;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free token bucket rate limiter.
+ * <p/>
+ * The bucket is tracked as the time at which it will be full again (generic cell rate algorithm), so acquiring
+ * permits is a single CAS on one `AtomicLong` whatever the contention. Up to `burst` permits can be taken at
+ * once after an idle period.
+ * <p/>
+ * * RateLimiter.of(new MeasuredRate.Rate(BigDecimal.valueOf(500L), Duration.of("1 s")), 50L)
+ * * RateLimiter.of(Duration.of("10 ms")) // one permit every 10 ms
+ */
+public class RateLimiter {
+
+    private final double nanosPerPermit;
+    private final long burst;
+    private final long burstNanos;
+    private final ScheduledExecutorService timer;
+    /**
+     * Theoretical arrival time : instant (System.nanoTime) at which all the permits given so far are paid back
+     */
+    private final AtomicLong nextFreeTime;
+
+    private RateLimiter(double nanosPerPermit, long burst, ScheduledExecutorService timer) {
+        Invariant.invariant(nanosPerPermit > 0.0, "Rate should be positive");
+        Invariant.invariant(burst > 0L, "Burst should be at least one permit");
+        Invariant.checkNotNull(timer);
+        this.nanosPerPermit = nanosPerPermit;
+        this.burst = burst;
+        // rounded like cost() so a full burst always fits an idle bucket
+        this.burstNanos = Math.round(burst * nanosPerPermit);
+        this.timer = timer;
+        this.nextFreeTime = new AtomicLong(System.nanoTime());
+    }
+
+    public static RateLimiter of(MeasuredRate.Rate rate) {
+        return of(rate, 1L);
+    }
+
+    public static RateLimiter of(MeasuredRate.Rate rate, long burst) {
+        Invariant.checkNotNull(rate);
+        Invariant.invariant(rate.value.signum() > 0, "Rate should be positive");
+        return new RateLimiter(rate.per.toNanos() / rate.value.doubleValue(), burst, Schedulers.timer());
+    }
+
+    /**
+     * One permit every `interval`
+     */
+    public static RateLimiter of(Duration interval) {
+        return of(interval, 1L);
+    }
+
+    public static RateLimiter of(Duration interval, long burst) {
+        Invariant.checkNotNull(interval);
+        return new RateLimiter(interval.toNanos(), burst, Schedulers.timer());
+    }
+
+    public boolean tryAcquire() {
+        return tryAcquire(1L);
+    }
+
+    /**
+     * Takes `permits` if they are available right now, never waits
+     */
+    public boolean tryAcquire(long permits) {
+        Invariant.invariant(permits > 0L, "Permits should be positive");
+        long cost = cost(permits);
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextFreeTime.get();
+            long updated = Math.max(next, now) + cost;
+            if (updated - now > burstNanos) {
+                return false;
+            }
+            if (nextFreeTime.compareAndSet(next, updated)) {
+                return true;
+            }
+        }
+    }
+
+    public Duration acquire() {
+        return acquire(1L);
+    }
+
+    /**
+     * Takes `permits`, parking the calling thread until they are available. Returns the time spent waiting.
+     * <p/>
+     * The wait is uninterruptible : once booked the permits are always waited for, so an interrupted thread keeps
+     * waiting and returns with its interrupt flag set.
+     */
+    public Duration acquire(long permits) {
+        long wait = reserve(permits);
+        long deadline = System.nanoTime() + wait;
+        long remaining = wait;
+        boolean interrupted = false;
+        while (remaining > 0L) {
+            LockSupport.parkNanos(this, remaining);
+            // parkNanos returns at once while the flag is set, it is cleared and restored on return
+            if (Thread.interrupted()) {
+                interrupted = true;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return Duration.of(Math.max(0L, wait), TimeUnit.NANOSECONDS);
+    }
+
+    public CompletableFuture<Unit> acquireAsync() {
+        return acquireAsync(1L);
+    }
+
+    /**
+     * Takes `permits` without blocking : the returned future is completed by the shared timer once they are
+     * available. Dependent stages run on the timer thread unless an executor is given (`thenApplyAsync`, ...).
+     */
+    public CompletableFuture<Unit> acquireAsync(long permits) {
+        long wait = reserve(permits);
+        if (wait <= 0L) {
+            return CompletableFuture.completedFuture(Unit.unit());
+        }
+        CompletableFuture<Unit> future = new CompletableFuture<>();
+        timer.schedule(() -> future.complete(Unit.unit()), wait, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    /**
+     * Books `permits` whatever the state of the bucket and returns how long to wait before using them
+     */
+    private long reserve(long permits) {
+        Invariant.invariant(permits > 0L, "Permits should be positive");
+        long cost = cost(permits);
+        while (true) {
+            long now = System.nanoTime();
+            long next = nextFreeTime.get();
+            long updated = Math.max(next, now) + cost;
+            if (nextFreeTime.compareAndSet(next, updated)) {
+                return updated - now - burstNanos;
+            }
+        }
+    }
+
+    private long cost(long permits) {
+        return Math.round(permits * nanosPerPermit);
+    }
+
+    public final long burst() {
+        return burst;
+    }
+
+    public final MeasuredRate.FastRate rate() {
+        return new MeasuredRate.FastRate(TimeUnit.SECONDS.toNanos(1L) / nanosPerPermit, TimeUnit.SECONDS.toNanos(1L));
+    }
+
+    @Override
+    public String toString() {
+        return "RateLimiter { " +
+                "permitsPerSecond = " + rate().perSecond() +
+                ", burst = " + burst +
+                " }";
+    }
+}
@@ -0,0 +1,217 @@
+package org.reactivecouchbase.common;
+
+import org.reactivecouchbase.functional.Try;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Immutable retry policy running attempts asynchronously.
+ * <p/>
+ * Attempts run on an executor (the common fork join pool by default) and the waits between them are scheduled
+ * on the shared `Schedulers.timer()`, so a retrying operation holds no thread while backing off. The returned
+ * future completes normally with the first success or the last failure, and exceptionally only when an attempt
+ * throws an `Error`.
+ * <p/>
+ * * CompletableFuture<Try<User>> user = RetryPolicy.of(5).withDecorrelatedJitter(Duration.of("50 ms"), Duration.of("5 s")).retry(() -> users.find(id)) // users.find returns a Try<User>
+ * * RetryPolicy.of(3).withRetryOn(e -> e instanceof UncheckedIOException).apply(() -> users.load(id))
+ */
+public class RetryPolicy {
+
+    public enum Backoff {
+        /**
+         * baseDelay * multiplier ^ (attempt - 1), capped at maxDelay
+         */
+        EXPONENTIAL,
+        /**
+         * Random between baseDelay and 3 times the previous delay, capped at maxDelay. Spreads the retries of
+         * concurrent callers failing at the same time.
+         */
+        DECORRELATED_JITTER
+    }
+
+    private static final Predicate<Throwable> ALWAYS = e -> true;
+
+    private final int maxAttempts;
+    private final Backoff backoff;
+    private final long baseDelayNanos;
+    private final long maxDelayNanos;
+    private final double multiplier;
+    private final Predicate<Throwable> retryOn;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+
+    private RetryPolicy(int maxAttempts, Backoff backoff, long baseDelayNanos, long maxDelayNanos, double multiplier,
+                        Predicate<Throwable> retryOn, Executor executor, ScheduledExecutorService timer) {
+        Invariant.invariant(maxAttempts > 0, "Max attempts should be positive");
+        Invariant.checkNotNull(backoff);
+        Invariant.invariant(baseDelayNanos >= 0L && baseDelayNanos <= maxDelayNanos, "Base delay should be positive and lower than max delay");
+        Invariant.invariant(multiplier >= 1.0, "Multiplier should be at least 1");
+        Invariant.checkNotNull(retryOn);
+        Invariant.checkNotNull(executor);
+        Invariant.checkNotNull(timer);
+        this.maxAttempts = maxAttempts;
+        this.backoff = backoff;
+        this.baseDelayNanos = baseDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+        this.multiplier = multiplier;
+        this.retryOn = retryOn;
+        this.executor = executor;
+        this.timer = timer;
+    }
+
+    /**
+     * `maxAttempts` attempts (the first call included) on any failure, with an exponential backoff from 100 ms
+     * doubling up to 10 s
+     */
+    public static RetryPolicy of(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, Backoff.EXPONENTIAL, TimeUnit.MILLISECONDS.toNanos(100L),
+                TimeUnit.SECONDS.toNanos(10L), 2.0, ALWAYS, ForkJoinPool.commonPool(), Schedulers.timer());
+    }
+
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        return new RetryPolicy(maxAttempts, backoff, baseDelayNanos, maxDelayNanos, multiplier, retryOn, executor, timer);
+    }
+
+    public RetryPolicy withExponentialBackoff(Duration baseDelay, Duration maxDelay) {
+        return withExponentialBackoff(baseDelay, maxDelay, 2.0);
+    }
+
+    public RetryPolicy withExponentialBackoff(Duration baseDelay, Duration maxDelay, double multiplier) {
+        return new RetryPolicy(maxAttempts, Backoff.EXPONENTIAL, baseDelay.toNanos(), maxDelay.toNanos(), multiplier, retryOn, executor, timer);
+    }
+
+    public RetryPolicy withDecorrelatedJitter(Duration baseDelay, Duration maxDelay) {
+        return new RetryPolicy(maxAttempts, Backoff.DECORRELATED_JITTER, baseDelay.toNanos(), maxDelay.toNanos(), multiplier, retryOn, executor, timer);
+    }
+
+    /**
+     * Only failures matching `retryOn` are retried, the others are returned at once
+     */
+    public RetryPolicy withRetryOn(Predicate<Throwable> retryOn) {
+        return new RetryPolicy(maxAttempts, backoff, baseDelayNanos, maxDelayNanos, multiplier, retryOn, executor, timer);
+    }
+
+    /**
+     * Executor running the attempts, the first one included
+     */
+    public RetryPolicy withExecutor(Executor executor) {
+        return new RetryPolicy(maxAttempts, backoff, baseDelayNanos, maxDelayNanos, multiplier, retryOn, executor, timer);
+    }
+
+    /**
+     * Runs `call` until it succeeds, fails with an error rejected by `retryOn` or `maxAttempts` is reached.
+     * Exceptions thrown by `call` are handled as failures.
+     */
+    public <T> CompletableFuture<Try<T>> retry(Supplier<Try<T>> call) {
+        Invariant.checkNotNull(call);
+        CompletableFuture<Try<T>> promise = new CompletableFuture<>();
+        submit(call, promise, 1, 0L);
+        return promise;
+    }
+
+    /**
+     * Same as `retry(() -> Try.apply(call))`
+     */
+    public <T> CompletableFuture<Try<T>> apply(Supplier<T> call) {
+        Invariant.checkNotNull(call);
+        return retry(() -> Try.apply(call));
+    }
+
+    private <T> void submit(Supplier<Try<T>> call, CompletableFuture<Try<T>> promise, int attempt, long previousDelay) {
+        try {
+            executor.execute(() -> {
+                try {
+                    attempt(call, promise, attempt, previousDelay);
+                } catch (Throwable e) {
+                    // errors would otherwise escape on the executor thread and leave the future pending
+                    promise.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            promise.complete(Try.failure(e));
+        }
+    }
+
+    private <T> void attempt(Supplier<Try<T>> call, CompletableFuture<Try<T>> promise, int attempt, long previousDelay) {
+        if (promise.isDone()) {
+            // cancelled by the caller
+            return;
+        }
+        Try<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = Try.failure(e);
+        }
+        if (result == null) {
+            result = Try.failure(new NullPointerException("Retried call returned null"));
+        }
+        if (result.isSuccess() || attempt >= maxAttempts || !shouldRetry(result)) {
+            promise.complete(result);
+            return;
+        }
+        long delay = delay(attempt, previousDelay);
+        try {
+            timer.schedule(() -> submit(call, promise, attempt + 1, delay), delay, TimeUnit.NANOSECONDS);
+        } catch (RuntimeException e) {
+            promise.complete(result);
+        }
+    }
+
+    private boolean shouldRetry(Try<?> failure) {
+        try {
+            return retryOn.test(failure.asFailure().get());
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Wait in nanoseconds before the attempt following `attempt`
+     */
+    private long delay(int attempt, long previousDelay) {
+        if (backoff == Backoff.DECORRELATED_JITTER) {
+            long upper = Math.min(maxDelayNanos, Math.max(baseDelayNanos, previousDelay) * 3L);
+            if (upper <= baseDelayNanos) {
+                return baseDelayNanos;
+            }
+            return ThreadLocalRandom.current().nextLong(baseDelayNanos, upper + 1L);
+        }
+        double delay = baseDelayNanos * Math.pow(multiplier, attempt - 1);
+        return delay >= maxDelayNanos ? maxDelayNanos : (long) delay;
+    }
+
+    public final int maxAttempts() {
+        return maxAttempts;
+    }
+
+    public final Backoff backoff() {
+        return backoff;
+    }
+
+    public final Duration baseDelay() {
+        return Duration.of(baseDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public final Duration maxDelay() {
+        return Duration.of(maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy { " +
+                "maxAttempts = " + maxAttempts +
+                ", backoff = " + backoff +
+                ", baseDelay = " + baseDelayNanos + " ns" +
+                ", maxDelay = " + maxDelayNanos + " ns" +
+                ", multiplier = " + multiplier +
+                " }";
+    }
+}
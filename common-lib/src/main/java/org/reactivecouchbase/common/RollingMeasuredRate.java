@@ -0,0 +1,141 @@
+package org.reactivecouchbase.common;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window rate.
+ * <p/>
+ * The sample interval is split in `buckets` sub-buckets kept in a ring buffer. `getCount()` returns the count
+ * of the last `buckets` complete sub-buckets, so the reading moves smoothly by one sub-bucket at a time instead
+ * of jumping once per interval like `MeasuredRate`.
+ * <p/>
+ * Each slot packs the index of its sub-bucket (24 high bits) and its count (40 low bits) in a single word : an
+ * increment is one CAS, a stale slot is recycled by the same CAS and readers skip slots of other sub-buckets.
+ * A sub-bucket count saturates at 2^40 - 1 instead of overflowing into the index.
+ */
+public class RollingMeasuredRate {
+
+    private static final int COUNT_BITS = 40;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1L;
+    private static final long STAMP_MASK = (1L << (64 - COUNT_BITS)) - 1L;
+
+    private final long sampleInterval;
+    private final int buckets;
+    private final long bucketInterval;
+    private final AtomicLongArray slots;
+    private final Clock clock;
+
+    public RollingMeasuredRate(long sampleInterval, int buckets) {
+        this(sampleInterval, buckets, Clock.cached());
+    }
+
+    public RollingMeasuredRate(long sampleInterval, int buckets, Clock clock) {
+        Invariant.invariant(buckets > 0, "There should be at least one bucket");
+        Invariant.checkNotNull(clock);
+        Invariant.invariant(sampleInterval >= buckets, "Sample interval should be at least one millisecond per bucket");
+        this.sampleInterval = sampleInterval;
+        this.buckets = buckets;
+        this.bucketInterval = sampleInterval / buckets;
+        // one more slot for the sub-bucket in progress
+        this.slots = new AtomicLongArray(buckets + 1);
+        this.clock = clock;
+    }
+
+    public static RollingMeasuredRate of(Duration duration, int buckets) {
+        return new RollingMeasuredRate(duration.toMillis(), buckets);
+    }
+
+    public static RollingMeasuredRate of(Duration duration) {
+        return new RollingMeasuredRate(duration.toMillis(), 10);
+    }
+
+    public static RollingMeasuredRate of(Duration duration, int buckets, Clock clock) {
+        return new RollingMeasuredRate(duration.toMillis(), buckets, clock);
+    }
+
+    /**
+     * Returns the count in the last sample interval, made of the last complete sub-buckets
+     */
+    public long getCount() {
+        return sum(currentBucket() - buckets, buckets);
+    }
+
+    public MeasuredRate.Rate rate() {
+        return new MeasuredRate.Rate(BigDecimal.valueOf(getCount()), Duration.of(bucketInterval * buckets, TimeUnit.MILLISECONDS));
+    }
+
+    public MeasuredRate.FastRate fastRate() {
+        return new MeasuredRate.FastRate(getCount(), TimeUnit.MILLISECONDS.toNanos(bucketInterval * buckets));
+    }
+
+    /**
+     * Returns the count in the sample interval ending now, the last sub-bucket being incomplete.
+     */
+    public long getCurrentCount() {
+        return sum(currentBucket() - buckets + 1L, buckets);
+    }
+
+    public void increment() {
+        increment(1L);
+    }
+
+    public void mark() {
+        increment(1L);
+    }
+
+    public void increment(long of) {
+        Invariant.invariant(of >= 0L, "Increment can't be negative");
+        long bucket = currentBucket();
+        int slot = (int) (bucket % slots.length());
+        long stamp = bucket & STAMP_MASK;
+        long added = Math.min(of, COUNT_MASK);
+        while (true) {
+            long value = slots.get(slot);
+            long count = (value >>> COUNT_BITS) == stamp ? value & COUNT_MASK : 0L;
+            long next = (stamp << COUNT_BITS) | Math.min(count + added, COUNT_MASK);
+            if (slots.compareAndSet(slot, value, next)) {
+                return;
+            }
+        }
+    }
+
+    public void mark(long of) {
+        increment(of);
+    }
+
+    public void reset() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, 0L);
+        }
+    }
+
+    public final long sampleInterval() {
+        return sampleInterval;
+    }
+
+    public final int buckets() {
+        return buckets;
+    }
+
+    private long currentBucket() {
+        return clock.currentTimeMillis() / bucketInterval;
+    }
+
+    private long sum(long from, int count) {
+        long total = 0L;
+        for (long bucket = from; bucket < from + count; bucket++) {
+            long value = slots.get((int) Math.floorMod(bucket, (long) slots.length()));
+            if ((value >>> COUNT_BITS) == (bucket & STAMP_MASK)) {
+                total += value & COUNT_MASK;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "count:" + getCount() + "currentCount:" + getCurrentCount();
+    }
+}
@@ -0,0 +1,34 @@
+package org.reactivecouchbase.common;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Process wide timer used to complete futures after a delay instead of parking a thread per waiting task.
+ * <p/>
+ * Tasks scheduled on it must be short (completing a future, handing work to an executor) since a single daemon
+ * thread runs them all.
+ */
+public class Schedulers {
+
+    private Schedulers() {
+    }
+
+    private static class TimerHolder {
+        private static final ScheduledExecutorService TIMER = createTimer();
+
+        private static ScheduledExecutorService createTimer() {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "reactivecouchbase-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    public static ScheduledExecutorService timer() {
+        return TimerHolder.TIMER;
+    }
+}
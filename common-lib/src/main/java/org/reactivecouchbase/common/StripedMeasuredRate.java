@@ -0,0 +1,129 @@
+package org.reactivecouchbase.common;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * `MeasuredRate` variant for highly contended counters.
+ * <p/>
+ * Increments go to striped `LongAdder` cells instead of a single `AtomicLong` and time is read from
+ * `Clock.cached()` by default. The window rollover swaps the current and last windows with a single CAS and increments
+ * racing with a rollover land in the window that just closed, so no count is lost.
+ */
+public class StripedMeasuredRate {
+
+    private static class Window {
+        final long end;
+        final LongAdder count = new LongAdder();
+
+        Window(long end) {
+            this.end = end;
+        }
+    }
+
+    private static class Windows {
+        final Window current;
+        final Window last;
+
+        Windows(Window current, Window last) {
+            this.current = current;
+            this.last = last;
+        }
+    }
+
+    private static final Window EMPTY = new Window(0L);
+
+    private final AtomicReference<Windows> windows;
+    private final long sampleInterval;
+    private final Clock clock;
+
+    public StripedMeasuredRate(long sampleInterval) {
+        this(sampleInterval, Clock.cached());
+    }
+
+    public StripedMeasuredRate(long sampleInterval, Clock clock) {
+        Invariant.invariant(sampleInterval > 0L, "Sample interval should be positive");
+        Invariant.checkNotNull(clock);
+        this.sampleInterval = sampleInterval;
+        this.clock = clock;
+        this.windows = new AtomicReference<>(new Windows(new Window(clock.currentTimeMillis() + sampleInterval), EMPTY));
+    }
+
+    public static StripedMeasuredRate of(Duration duration) {
+        return new StripedMeasuredRate(duration.toMillis());
+    }
+
+    public static StripedMeasuredRate of(Duration duration, Clock clock) {
+        return new StripedMeasuredRate(duration.toMillis(), clock);
+    }
+
+    public static StripedMeasuredRate of(Long duration) {
+        return new StripedMeasuredRate(duration);
+    }
+
+    /**
+     * Returns the count in the last sample interval
+     */
+    public long getCount() {
+        return checkAndResetWindow().last.count.sum();
+    }
+
+    public MeasuredRate.Rate rate() {
+        return new MeasuredRate.Rate(BigDecimal.valueOf(getCount()), Duration.of(sampleInterval, TimeUnit.MILLISECONDS));
+    }
+
+    public MeasuredRate.FastRate fastRate() {
+        return new MeasuredRate.FastRate(getCount(), TimeUnit.MILLISECONDS.toNanos(sampleInterval));
+    }
+
+    /**
+     * Returns the count in the current sample interval which will be incomplete.
+     */
+    public long getCurrentCount() {
+        return checkAndResetWindow().current.count.sum();
+    }
+
+    public void increment() {
+        checkAndResetWindow().current.count.increment();
+    }
+
+    public void mark() {
+        increment();
+    }
+
+    public void increment(long of) {
+        checkAndResetWindow().current.count.add(of);
+    }
+
+    public void mark(long of) {
+        increment(of);
+    }
+
+    private Windows checkAndResetWindow() {
+        long now = clock.currentTimeMillis();
+        Windows current = windows.get();
+        while (now >= current.current.end) {
+            long end = current.current.end;
+            // skip the windows without any activity
+            long elapsed = (now - end) / sampleInterval;
+            Window last = elapsed == 0L ? current.current : EMPTY;
+            Windows next = new Windows(new Window(end + (elapsed + 1L) * sampleInterval), last);
+            if (windows.compareAndSet(current, next)) {
+                return next;
+            }
+            current = windows.get();
+        }
+        return current;
+    }
+
+    public void reset() {
+        windows.set(new Windows(new Window(clock.currentTimeMillis() + sampleInterval), EMPTY));
+    }
+
+    @Override
+    public String toString() {
+        return "count:" + getCount() + "currentCount:" + getCurrentCount();
+    }
+}
@@ -0,0 +1,152 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Assume;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Tiny harness for the throughput and allocation comparisons of the tests. Numbers are indicative only.
+ * <p/>
+ * `benchmark*` tests only run with `-Dbenchmarks=true`, which also prints their results. Tests using `concurrent`
+ * to drive threads run in any case, silently.
+ */
+public class Benchmarks {
+
+    public static final boolean ENABLED = Boolean.getBoolean("benchmarks");
+
+    /**
+     * Skips the calling test unless benchmarks are enabled
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Benchmarks run with -Dbenchmarks=true", ENABLED);
+    }
+
+    public interface Body {
+        void run(int thread, int iterations) throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        public final int threads;
+        public final long operations;
+        public final long nanos;
+
+        Result(String name, int threads, long operations, long nanos) {
+            this.name = name;
+            this.threads = threads;
+            this.operations = operations;
+            this.nanos = nanos;
+        }
+
+        public double opsPerSecond() {
+            return operations * 1000000000.0 / nanos;
+        }
+
+        public double nanosPerOp() {
+            return (double) nanos * threads / operations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-32s threads=%-3d %,14.0f ops/s %10.1f ns/op", name, threads, opsPerSecond(), nanosPerOp());
+        }
+    }
+
+    /**
+     * Runs `body` on `threads` threads released at the same time, each one doing `iterations` operations.
+     */
+    public static Result concurrent(String name, int threads, int iterations, Body body) throws Exception {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        Throwable[] errors = new Throwable[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                ready.countDown();
+                try {
+                    start.await();
+                    body.run(thread, iterations);
+                } catch (Throwable e) {
+                    errors[thread] = e;
+                } finally {
+                    done.countDown();
+                }
+            }, name + "-" + t);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        if (!done.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Benchmark " + name + " did not complete");
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Throwable error : errors) {
+            if (error != null) {
+                throw new RuntimeException(error);
+            }
+        }
+        Result result = new Result(name, threads, (long) threads * iterations, elapsed);
+        report(result.toString());
+        return result;
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static long sink = 0L;
+
+    /**
+     * Runs `body` `iterations` times on the current thread after a warmup and returns the allocated B/op, NaN
+     * when the JVM can't measure per thread allocations.
+     */
+    public static double allocation(String name, int iterations, LongSupplier body) {
+        for (int i = 0; i < iterations; i++) {
+            sink += body.getAsLong();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += body.getAsLong();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        double bytesPerOp = allocatedBefore < 0L || allocatedAfter < 0L ? Double.NaN : (double) (allocatedAfter - allocatedBefore) / iterations;
+        report(String.format("%-40s %10.1f ns/op %10.1f B/op", name, (double) elapsed / iterations, bytesPerOp));
+        return bytesPerOp;
+    }
+
+    /**
+     * Fails if `bytesPerOp`, as measured by `allocation`, shows allocations. Skips the test when they couldn't be measured.
+     */
+    public static void assertAllocationFree(String name, double bytesPerOp) {
+        Assume.assumeFalse("Per thread allocations can't be measured on this JVM", Double.isNaN(bytesPerOp));
+        Assert.assertTrue(name + " allocates " + bytesPerOp + " B/op", bytesPerOp < 1.0);
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, -1 unless the JVM provides `com.sun.management.ThreadMXBean`
+     */
+    private static long allocatedBytes() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        } catch (LinkageError | UnsupportedOperationException e) {
+            // not a HotSpot based JVM, or allocation measurement is disabled
+        }
+        return -1L;
+    }
+
+    private static void report(String line) {
+        if (ENABLED) {
+            System.out.println(line);
+        }
+    }
+}
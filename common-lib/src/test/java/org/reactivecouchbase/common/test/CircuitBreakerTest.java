@@ -0,0 +1,142 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.CircuitBreaker;
+import org.reactivecouchbase.common.Clock;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.ManualClock;
+import org.reactivecouchbase.functional.Try;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+public class CircuitBreakerTest {
+
+    private static final Supplier<Try<String>> OK = () -> Try.success("ok");
+    private static final Supplier<Try<String>> KO = () -> Try.failure(new RuntimeException("ko"));
+
+    @Test
+    public void testOpensOnFailuresAndRecovers() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.of(CircuitBreaker.Config.defaults()
+                .withMinimumCalls(10)
+                .withOpenDuration(Duration.of("100 ms"))
+                .withHalfOpenCalls(2));
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(breaker.call(OK).isSuccess());
+        }
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(breaker.call(KO).isFailure());
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        breaker.call(() -> {
+            throw new IllegalStateException("boom");
+        });
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        Try<String> rejected = breaker.call(OK);
+        Assert.assertSame(CircuitBreaker.OPEN_EXCEPTION, rejected.asFailure().get());
+        Assert.assertEquals(1L, breaker.rejections());
+
+        Thread.sleep(150L);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        Assert.assertTrue(breaker.call(KO).isFailure());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+
+        Thread.sleep(150L);
+        Assert.assertTrue(breaker.call(OK).isSuccess());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        Assert.assertTrue(breaker.call(OK).isSuccess());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        Assert.assertEquals(0.0, breaker.failureRate(), 0.0);
+    }
+
+    @Test
+    public void testErrorInHalfOpenTrialReopens() {
+        ManualClock clock = Clock.manual(0L);
+        CircuitBreaker breaker = CircuitBreaker.of(CircuitBreaker.Config.defaults()
+                .withMinimumCalls(2)
+                .withOpenDuration(Duration.of("1 s"))
+                .withHalfOpenCalls(1), clock);
+        breaker.call(KO);
+        breaker.call(KO);
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        clock.advance(Duration.of("1 s"));
+        try {
+            breaker.call(() -> {
+                throw new Error("boom");
+            });
+            Assert.fail("Error should be rethrown");
+        } catch (Error e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        clock.advance(Duration.of("1 s"));
+        Assert.assertTrue(breaker.call(OK).isSuccess());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void testLateTrialResultIsIgnored() {
+        ManualClock clock = Clock.manual(0L);
+        CircuitBreaker breaker = CircuitBreaker.of(CircuitBreaker.Config.defaults()
+                .withMinimumCalls(2)
+                .withOpenDuration(Duration.of("1 s"))
+                .withHalfOpenCalls(2), clock);
+        breaker.call(KO);
+        breaker.call(KO);
+        clock.advance(Duration.of("1 s"));
+        // the first trial is still running when a sibling trial reopens the breaker and the next cycle begins
+        Assert.assertTrue(breaker.call(() -> {
+            Assert.assertTrue(breaker.call(KO).isFailure());
+            Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+            clock.advance(Duration.of("1 s"));
+            Assert.assertTrue(breaker.call(OK).isSuccess());
+            return OK.get();
+        }).isSuccess());
+        // its success belongs to the previous cycle, one more is needed
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        Assert.assertTrue(breaker.call(OK).isSuccess());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+
+    @Test
+    public void testOpensOnSlowCalls() throws Exception {
+        CircuitBreaker breaker = CircuitBreaker.of(CircuitBreaker.Config.defaults()
+                .withMinimumCalls(4)
+                .withSlowCallRate(0.5, Duration.of("5 ms")));
+        Supplier<Try<String>> slow = () -> {
+            LockSupport.parkNanos(10000000L);
+            return Try.success("slow");
+        };
+        breaker.call(OK);
+        breaker.call(OK);
+        breaker.call(slow);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        Assert.assertTrue(breaker.call(slow).isSuccess());
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        Assert.assertTrue(breaker.call(OK).isFailure());
+    }
+
+    @Test
+    public void benchmarkClosedPath() throws Exception {
+        Benchmarks.assumeEnabled();
+        CircuitBreaker breaker = CircuitBreaker.of();
+        Try<String> ok = Try.success("ok");
+        Benchmarks.concurrent("direct call", 4, 2000000, (thread, iterations) -> {
+            Supplier<Try<String>> call = () -> ok;
+            for (int i = 0; i < iterations; i++) {
+                if (call.get().isFailure()) {
+                    throw new IllegalStateException();
+                }
+            }
+        });
+        Benchmarks.concurrent("CircuitBreaker.call", 4, 2000000, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                if (breaker.call(() -> ok).isFailure()) {
+                    throw new IllegalStateException();
+                }
+            }
+        });
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+    }
+}
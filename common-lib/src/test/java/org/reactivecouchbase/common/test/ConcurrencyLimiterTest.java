@@ -0,0 +1,131 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.ConcurrencyLimiter;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.functional.Option;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+public class ConcurrencyLimiterTest {
+
+    /**
+     * Fills the limiter, waits `rttNanos` then releases every permit
+     */
+    private static void saturate(ConcurrencyLimiter limiter, long rttNanos, boolean dropped) {
+        List<ConcurrencyLimiter.Permit> permits = new ArrayList<>();
+        Option<ConcurrencyLimiter.Permit> permit = limiter.tryAcquire();
+        while (permit.isDefined()) {
+            permits.add(permit.get());
+            permit = limiter.tryAcquire();
+        }
+        if (rttNanos > 0L) {
+            LockSupport.parkNanos(rttNanos);
+        }
+        for (ConcurrencyLimiter.Permit p : permits) {
+            p.release(!dropped);
+        }
+    }
+
+    @Test
+    public void testAimdLimit() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.of(ConcurrencyLimiter.aimd(10, 2, 50, Duration.of("1 s")));
+        Assert.assertEquals(10, limiter.limit());
+        saturate(limiter, 0L, false);
+        // grows while at least half of the permits are still in flight
+        Assert.assertTrue(limiter.limit() > 10);
+        Assert.assertTrue(limiter.rejections() >= 1L);
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, 0L, false);
+        }
+        Assert.assertEquals(50, limiter.limit());
+        saturate(limiter, 0L, true);
+        Assert.assertEquals(2, limiter.limit());
+        Assert.assertEquals(0, limiter.inFlight());
+        Assert.assertTrue(limiter.minRtt().toNanos() <= limiter.smoothedRtt().toNanos());
+    }
+
+    @Test
+    public void testGradientShrinksWhenRttGrows() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.of(ConcurrencyLimiter.gradient(20, 1, 200));
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, 100000L, false);
+        }
+        int grown = limiter.limit();
+        Assert.assertTrue(grown > 20);
+        // the long term RTT adapts over a few hundred samples, the limit reacts at once
+        saturate(limiter, 5000000L, false);
+        Assert.assertTrue(limiter.limit() < grown / 2);
+        Assert.assertTrue(limiter.smoothedRtt().toNanos() > limiter.minRtt().toNanos());
+    }
+
+    @Test
+    public void testGradientKeepsDropsOutOfLongTermRtt() throws Exception {
+        ConcurrencyLimiter dropping = ConcurrencyLimiter.of(ConcurrencyLimiter.gradient(2, 2, 200, 1.0, 1.0, 4));
+        ConcurrencyLimiter timingOut = ConcurrencyLimiter.of(ConcurrencyLimiter.gradient(2, 2, 200, 1.0, 1.0, 4, Duration.of("10 ms")));
+        for (ConcurrencyLimiter limiter : new ConcurrencyLimiter[]{dropping, timingOut}) {
+            // long term RTT of about 100 us
+            for (int i = 0; i < 5; i++) {
+                release(limiter, 100000L, false);
+            }
+            // 20 ms drops, or successes over the timeout, bring the limit down to its minimum
+            for (int i = 0; i < 3; i++) {
+                release(limiter, 20000000L, limiter == dropping);
+            }
+            Assert.assertEquals(2, limiter.limit());
+            // a 3 ms sample is far over the baseline : the limit of 2 can't grow past 2.5, it would reach 3.4
+            // with a long term RTT raised by the drops
+            release(limiter, 3000000L, false);
+            Assert.assertEquals(2, limiter.limit());
+        }
+    }
+
+    private static void release(ConcurrencyLimiter limiter, long rttNanos, boolean dropped) {
+        ConcurrencyLimiter.Permit permit = limiter.tryAcquire().get();
+        LockSupport.parkNanos(rttNanos);
+        permit.release(!dropped);
+    }
+
+    @Test
+    public void testLimitersDontShareAlgorithmState() throws Exception {
+        ConcurrencyLimiter.Algorithm gradient = ConcurrencyLimiter.gradient(20, 1, 200);
+        ConcurrencyLimiter fast = ConcurrencyLimiter.of(gradient);
+        for (int i = 0; i < 20; i++) {
+            saturate(fast, 100000L, false);
+        }
+        // a shared long term RTT of 100 us would make these 5 ms samples shrink the limit
+        ConcurrencyLimiter slow = ConcurrencyLimiter.of(gradient);
+        for (int i = 0; i < 3; i++) {
+            saturate(slow, 5000000L, false);
+        }
+        Assert.assertTrue(slow.limit() >= 20);
+    }
+
+    @Test
+    public void testQueueing() throws Exception {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.of(ConcurrencyLimiter.aimd(1, 1, 1, Duration.of("1 s")), 1);
+        ConcurrencyLimiter.Permit first = limiter.acquireAsync().get();
+        CompletableFuture<ConcurrencyLimiter.Permit> second = limiter.acquireAsync();
+        CompletableFuture<ConcurrencyLimiter.Permit> third = limiter.acquireAsync();
+        Assert.assertFalse(second.isDone());
+        Assert.assertEquals(1, limiter.queued());
+        try {
+            third.get();
+            Assert.fail("Queue should be full");
+        } catch (ExecutionException e) {
+            Assert.assertSame(ConcurrencyLimiter.LIMIT_EXCEEDED, e.getCause());
+        }
+        first.onSuccess();
+        first.onSuccess();
+        Assert.assertTrue(second.isDone());
+        Assert.assertEquals(1, limiter.inFlight());
+        Assert.assertEquals(0, limiter.queued());
+        second.get().onIgnore();
+        Assert.assertEquals(0, limiter.inFlight());
+    }
+}
@@ -0,0 +1,134 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Clock;
+import org.reactivecouchbase.common.Deadline;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.ManualClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DeadlineTest {
+
+    @Test
+    public void testRemainingAndChildren() {
+        ManualClock clock = Clock.manual(0L);
+        Deadline deadline = Deadline.of(Duration.of("500 ms"), clock);
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(500L), deadline.remainingNanos());
+        clock.advance(Duration.of("200 ms"));
+        Assert.assertEquals(300L, deadline.remaining().toMillis());
+        Assert.assertFalse(deadline.isExpired());
+
+        // a child can't outlive its parent
+        Assert.assertSame(deadline, deadline.child(Duration.of("1 s")));
+        Deadline child = deadline.child(Duration.of("100 ms"));
+        Assert.assertEquals(100L, child.remaining().toMillis());
+        Assert.assertSame(child, deadline.min(child));
+        Assert.assertSame(child, child.min(deadline));
+        Assert.assertTrue(child.compareTo(deadline) < 0);
+
+        clock.advance(Duration.of("100 ms"));
+        Assert.assertTrue(child.isExpired());
+        Assert.assertEquals(0L, child.remainingNanos());
+        Assert.assertFalse(deadline.isExpired());
+        clock.advance(Duration.of("1 s"));
+        Assert.assertTrue(deadline.isExpired());
+        Assert.assertEquals(Duration.ZERO, deadline.remaining());
+
+        Assert.assertFalse(Deadline.of(Duration.of(Long.MAX_VALUE, TimeUnit.DAYS), clock).isExpired());
+        Assert.assertTrue(Deadline.of(Duration.of(-1L, TimeUnit.SECONDS), clock).isExpired());
+    }
+
+    @Test
+    public void testOrTimeout() throws Exception {
+        CompletableFuture<String> slow = Deadline.of(Duration.of("20 ms")).orTimeout(new CompletableFuture<>());
+        assertExpired(slow);
+
+        CompletableFuture<String> fast = Deadline.of(Duration.of("5 s")).orTimeout(new CompletableFuture<>());
+        fast.complete("ok");
+        Assert.assertEquals("ok", fast.get());
+
+        // already expired : fails at once without scheduling anything
+        ManualClock clock = Clock.manual(0L);
+        Deadline expired = Deadline.of(Duration.of("1 ms"), clock);
+        clock.advance(Duration.of("1 ms"));
+        CompletableFuture<String> late = expired.orTimeout(new CompletableFuture<>());
+        Assert.assertTrue(late.isCompletedExceptionally());
+        assertExpired(late);
+    }
+
+    @Test
+    public void testExpiredWorkIsDropped() throws Exception {
+        ManualClock clock = Clock.manual(0L);
+        Deadline deadline = Deadline.of(Duration.of("10 ms"), clock);
+        AtomicInteger runs = new AtomicInteger(0);
+        List<Runnable> queue = new ArrayList<>();
+
+        CompletableFuture<Integer> queued = deadline.supplyAsync(runs::incrementAndGet, queue::add);
+        CompletableFuture<Integer> done = deadline.supplyAsync(runs::incrementAndGet, Runnable::run);
+        Assert.assertEquals(Integer.valueOf(1), done.get());
+
+        // expires while waiting in the queue
+        clock.advance(Duration.of("10 ms"));
+        queue.forEach(Runnable::run);
+        assertExpired(queued);
+        // expired before being submitted
+        assertExpired(deadline.supplyAsync(runs::incrementAndGet, queue::add));
+        Assert.assertEquals(1, queue.size());
+        Assert.assertEquals(1, runs.get());
+
+        CompletableFuture<Integer> error = deadline.child(Duration.of("0 ms")).supplyAsync(() -> 1, Runnable::run);
+        assertExpired(error);
+        Deadline open = Deadline.of(Duration.of("1 min"), clock);
+        CompletableFuture<Integer> failed = open.supplyAsync(() -> {
+            throw new AssertionError("boom");
+        }, Runnable::run);
+        Assert.assertTrue(failed.isCompletedExceptionally());
+    }
+
+    @Test
+    public void testExpiryFailuresAreNotShared() throws Exception {
+        ManualClock clock = Clock.manual(0L);
+        Deadline deadline = Deadline.of(Duration.of("1 ms"), clock);
+        clock.advance(Duration.of("1 ms"));
+        CompletableFuture<String> first = deadline.orTimeout(new CompletableFuture<>());
+        CompletableFuture<String> second = deadline.orTimeout(new CompletableFuture<>());
+        Throwable firstCause = first.handle((r, e) -> e).get();
+        firstCause.addSuppressed(new IllegalStateException("downstream"));
+        Throwable secondCause = second.handle((r, e) -> e).get();
+        Assert.assertTrue(firstCause != secondCause);
+        Assert.assertEquals(0, secondCause.getSuppressed().length);
+    }
+
+    @Test
+    public void benchmarkChecks() {
+        Benchmarks.assumeEnabled();
+        Deadline deadline = Deadline.of(Duration.of("1 min"), Clock.cached());
+        Duration budget = Duration.of("100 ms");
+        int iterations = 2000000;
+        double checks = Benchmarks.allocation("Deadline.isExpired.remainingNanos", iterations,
+                () -> deadline.isExpired() ? 0L : deadline.remainingNanos());
+        Benchmarks.allocation("Deadline.remaining.isLongerThan", iterations,
+                () -> deadline.remaining().isLongerThan(budget) ? 1L : 0L);
+        // remaining() creates a Duration, only the checks are allocation free without escape analysis
+        Benchmarks.assertAllocationFree("Deadline.isExpired.remainingNanos", checks);
+    }
+
+    private static void assertExpired(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Future should have expired");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof Deadline.ExpiredException);
+            Assert.assertEquals(0, e.getCause().getStackTrace().length);
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
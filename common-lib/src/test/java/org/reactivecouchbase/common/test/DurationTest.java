@@ -0,0 +1,236 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Duration;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+public class DurationTest {
+
+    @Test
+    public void testConstantsAndEquality() {
+        Assert.assertSame(Duration.ONE_SECOND, Duration.of(1L, TimeUnit.SECONDS));
+        Assert.assertSame(Duration.ONE_MILLISECOND, Duration.of(Long.valueOf(1L), TimeUnit.MILLISECONDS));
+        Assert.assertEquals(Duration.ZERO, Duration.of("1 s").minus(Duration.of("2 s")));
+        Assert.assertEquals(Duration.ONE_MINUTE, new Duration(1, TimeUnit.MINUTES));
+        Assert.assertEquals(Duration.ONE_MINUTE.hashCode(), new Duration(1, TimeUnit.MINUTES).hashCode());
+        Assert.assertNotEquals(Duration.ONE_SECOND, Duration.of(1000L, TimeUnit.MILLISECONDS));
+        // same hash as before the primitive fields, and values whose nanoseconds saturate stay distinct
+        Assert.assertEquals(31 * Long.valueOf(123456789L).hashCode() + TimeUnit.SECONDS.hashCode(), Duration.of(123456789L, TimeUnit.SECONDS).hashCode());
+        Assert.assertNotEquals(Duration.of(Long.MAX_VALUE, TimeUnit.DAYS), Duration.of(Long.MAX_VALUE - 1L, TimeUnit.DAYS));
+        Assert.assertEquals(0, Duration.ONE_SECOND.compareTo(Duration.of(1000L, TimeUnit.MILLISECONDS)));
+        Assert.assertEquals(Long.valueOf(1000L), Duration.of("1000 ms").value);
+        Assert.assertEquals("Duration{value=12, unit=SECONDS}", Duration.of("12 s").toString());
+    }
+
+    @Test
+    public void testArithmeticAndComparisons() {
+        Duration d = Duration.of("2 s");
+        Assert.assertEquals(Duration.of(2500000000L, TimeUnit.NANOSECONDS), d.plus(Duration.of("500 ms")));
+        Assert.assertEquals(Duration.of(2000000001L, TimeUnit.NANOSECONDS), d.plusNanos(1L));
+        Assert.assertEquals(1500L, d.minus(Duration.of("500 ms")).toMillis());
+        Assert.assertTrue(d.minusNanos(Long.MAX_VALUE).isZero());
+        Assert.assertTrue(d.isLongerThan(Duration.ONE_SECOND));
+        Assert.assertTrue(d.isShorterThan(Duration.ONE_MINUTE));
+        Assert.assertFalse(d.isLongerThan(Duration.of("2000 ms")));
+        Assert.assertTrue(Duration.ZERO.compareTo(Duration.ONE_MILLISECOND) < 0);
+    }
+
+    @Test
+    public void benchmarkArithmetic() {
+        Benchmarks.assumeEnabled();
+        Duration timeout = Duration.of("150 ms");
+        Duration budget = Duration.of("100 ms");
+        int iterations = 2000000;
+        Duration[] durations = {budget, timeout};
+        double comparisons = Benchmarks.allocation("Duration.compareTo.isLongerThan.equals.hashCode", iterations, () -> {
+            int i = (int) (System.nanoTime() & 1L);
+            return durations[i].compareTo(durations[1 - i]) + (durations[i].isLongerThan(timeout) ? 1L : 0L)
+                    + (durations[i].equals(durations[1 - i]) ? 1L : 0L) + durations[i].hashCode();
+        });
+        // plusNanos and minusNanos allocate the result and its boxed value, unless escape analysis removes both :
+        // measured for comparison only, arithmetic is not allocation free
+        Benchmarks.allocation("Duration.plusNanos.isLongerThan", iterations, () -> {
+            long elapsed = System.nanoTime() & 0xFFFFFFL;
+            return budget.plusNanos(elapsed).isLongerThan(timeout) ? 1L : 0L;
+        });
+        Benchmarks.allocation("Duration.minusNanos.compareTo", iterations, () -> {
+            long elapsed = System.nanoTime() & 0xFFFFFFL;
+            return timeout.minusNanos(elapsed).compareTo(budget);
+        });
+        Benchmarks.assertAllocationFree("Duration.compareTo.isLongerThan.equals.hashCode", comparisons);
+    }
+
+    @Test
+    public void testParseSimpleExpressions() {
+        Assert.assertEquals(Duration.of(12L, TimeUnit.SECONDS), Duration.parse("12 s"));
+        Assert.assertEquals(Duration.of(12L, TimeUnit.SECONDS), Duration.parse("12s"));
+        Assert.assertEquals(Duration.of(12L, TimeUnit.SECONDS), Duration.parse(" 12 Seconds "));
+        Assert.assertEquals(Duration.of(100L, TimeUnit.MILLISECONDS), Duration.parse("100 MS"));
+        Assert.assertEquals(Duration.of(3L, TimeUnit.MINUTES), Duration.of("3 min"));
+        Assert.assertEquals(Duration.of(-5L, TimeUnit.DAYS), Duration.parse("-5 days"));
+        Assert.assertEquals(Duration.of(7L, TimeUnit.NANOSECONDS), Duration.parse(new StringBuilder("7ns")));
+        Assert.assertEquals(Duration.of(2L, TimeUnit.HOURS), new Duration("2 h"));
+        for (String unit : Duration.UNITS.keySet()) {
+            Assert.assertEquals(Duration.of(42L, Duration.UNITS.get(unit)), Duration.parse("42 " + unit));
+        }
+        Assert.assertSame(Duration.parse("250 ms"), Duration.parse("250 ms"));
+    }
+
+    @Test
+    public void testParseCacheKeepsHotExpressions() {
+        Duration hot = Duration.parse("4321 ms");
+        Duration firstCold = Duration.parse("10000 micros");
+        // many more one-off expressions than the cache holds, with a hot one read in between
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertEquals(i, Duration.parse(i + " micros").toMicros());
+            if (i % 100 == 0) {
+                Assert.assertSame(hot, Duration.parse("4321 ms"));
+            }
+        }
+        Assert.assertSame(hot, Duration.parse("4321 ms"));
+        Assert.assertTrue(firstCold != Duration.parse("10000 micros"));
+        Assert.assertEquals(firstCold, Duration.parse("10000 micros"));
+    }
+
+    @Test
+    public void testParseCompoundAndIsoExpressions() {
+        Assert.assertEquals(Duration.of(5415L, TimeUnit.SECONDS), Duration.parse("1h 30m 15s"));
+        Assert.assertEquals(Duration.of(5415L, TimeUnit.SECONDS), Duration.parse("1h30m15s"));
+        Assert.assertEquals(Duration.of(1500L, TimeUnit.MILLISECONDS), Duration.parse("1 second 500 millis"));
+        Assert.assertEquals(Duration.of(15L, TimeUnit.SECONDS), Duration.parse("PT15S"));
+        Assert.assertEquals(Duration.of(90L, TimeUnit.MINUTES), Duration.parse("PT1H30M"));
+        Assert.assertEquals(Duration.of(2L, TimeUnit.DAYS), Duration.parse("P2D"));
+        Assert.assertEquals(Duration.of(86400500L, TimeUnit.MILLISECONDS), Duration.parse("P1DT0.5S"));
+        Assert.assertEquals(Duration.of(1000500L, TimeUnit.MICROSECONDS), Duration.parse("pt1,0005s"));
+        Assert.assertEquals(Duration.of(1000000001L, TimeUnit.NANOSECONDS), Duration.parse("PT1.000000001S"));
+        Assert.assertEquals(java.time.Duration.parse("PT1H30M15.25S"), Duration.parse("PT1H30M15.25S").toJdkDuration());
+    }
+
+    @Test
+    public void testParseErrors() {
+        List<String> invalid = Arrays.asList("", "12", "s", "12 parsecs", "12 s 4", "12 - s", "99999999999999999999 s",
+                "106751 days 1 day", "P", "PT", "P1DT", "PT1S1M", "PT1.5M", "P1H", "PT1.0000000001S", "P1Y");
+        for (String expression : invalid) {
+            try {
+                Duration.parse(expression);
+                Assert.fail("'" + expression + "' should not be parsed");
+            } catch (RuntimeException e) {
+                Assert.assertEquals("Can't parse expression " + expression + ". The format is 'value unit'.", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkParse() {
+        Benchmarks.assumeEnabled();
+        int iterations = 500000;
+        StringBuilder header = new StringBuilder("250 ms");
+        Benchmarks.allocation("former parse(\"250 ms\")", iterations, () -> formerParse("250 ms").value);
+        Benchmarks.allocation("former parse(\"250ms\")", iterations, () -> formerParse("250ms").value);
+        Benchmarks.allocation("parse(\"250 ms\") cached", iterations, () -> Duration.parse("250 ms").value);
+        Benchmarks.allocation("parse(\"250ms\") cached", iterations, () -> Duration.parse("250ms").value);
+        Benchmarks.allocation("parse(StringBuilder)", iterations, () -> Duration.parse(header).value);
+        Benchmarks.allocation("parse(\"1h 30m 15s\") cached", iterations, () -> Duration.parse("1h 30m 15s").value);
+    }
+
+    /**
+     * Duration.parse before the single pass parser, kept for comparison
+     */
+    private static Duration formerParse(String expression) {
+        if (expression.contains(" ")) {
+            List<String> parts = Arrays.asList(expression.trim().toLowerCase().split(" "));
+            Long value = Long.valueOf(parts.get(0));
+            return new Duration(value, Duration.UNITS.get(parts.get(1)));
+        }
+        String unitExpression = expression.replaceAll("([0-9]+)", "").trim().toLowerCase();
+        String valueExpression = expression.toLowerCase().replace(unitExpression, "").trim();
+        return new Duration(Long.valueOf(valueExpression), Duration.UNITS.get(unitExpression));
+    }
+
+    @Test
+    public void testHumanReadable() {
+        Assert.assertEquals("1 hour 30 minutes 15 seconds", Duration.parse("1h 30m 15s").toHumanReadable());
+        Assert.assertEquals("1h 30m 15s", Duration.parse("1h 30m 15s").toHumanReadable(true));
+        Assert.assertEquals("2 seconds 1 millisecond 5 nanoseconds", Duration.of(2001000005L, TimeUnit.NANOSECONDS).toHumanReadable());
+        Assert.assertEquals("250 millis", Duration.parse("250 ms").toHumanReadable());
+        Assert.assertEquals("1y 1d 1 milli", Duration.of(31622400001L, TimeUnit.MILLISECONDS).toHumanReadable(true));
+        StringBuilder builder = new StringBuilder("took ");
+        Assert.assertSame(builder, Duration.parse("PT1.5S").appendHumanReadable(builder));
+        Assert.assertEquals("took 1 second 500 milliseconds", builder.toString());
+        Random random = new Random(42L);
+        for (TimeUnit unit : TimeUnit.values()) {
+            for (int i = 0; i < 2000; i++) {
+                long value = i < 10 ? i : random.nextLong() >>> random.nextInt(64);
+                Duration duration = Duration.of(value, unit);
+                Assert.assertEquals(formerToHumanReadable(duration, false), duration.toHumanReadable());
+                Assert.assertEquals(formerToHumanReadable(duration, true), duration.toHumanReadable(true));
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkHumanReadable() {
+        Benchmarks.assumeEnabled();
+        int iterations = 500000;
+        Duration duration = Duration.parse("1h 30m 15s 250ms");
+        StringBuilder builder = new StringBuilder(64);
+        Benchmarks.allocation("former toHumanReadable", iterations, () -> formerToHumanReadable(duration, false).length());
+        Benchmarks.allocation("toHumanReadable", iterations, () -> duration.toHumanReadable().length());
+        double bytes = Benchmarks.allocation("appendHumanReadable(StringBuilder)", iterations, () -> {
+            builder.setLength(0);
+            return duration.appendHumanReadable(builder, true).length();
+        });
+        Benchmarks.assertAllocationFree("appendHumanReadable(StringBuilder)", bytes);
+    }
+
+    /**
+     * Duration.toHumanReadable before it was written to an Appendable, kept for comparison
+     */
+    private static String formerToHumanReadable(Duration duration, boolean small) {
+        if (duration.toMillis() == 0L) {
+            if (duration.toMicros() == 0L) {
+                return duration.value + " nanos";
+            } else {
+                return duration.value + " microsec";
+            }
+        }
+        if (duration.toMillis() < 1000L) {
+            return duration.value + " millis";
+        }
+        Long seconds = duration.toSeconds();
+        Double numyears = Math.floor(seconds / 31536000);
+        Double numdays = Math.floor((seconds % 31536000) / 86400);
+        Double numhours = Math.floor(((seconds % 31536000) % 86400) / 3600);
+        Double numminutes = Math.floor((((seconds % 31536000) % 86400) % 3600) / 60);
+        Long numseconds = (((seconds % 31536000) % 86400) % 3600) % 60;
+        Long nummillis = duration.toMillis() - (seconds * 1000);
+        Long nummicros = duration.toMicros() - (nummillis * 1000) - (seconds * 1000000);
+        Long numnanos = duration.toNanos() - (nummicros * 1000) - (nummillis * 1000000) - (seconds * 1000000000);
+        StringBuilder builder = new StringBuilder();
+        formerAppend(builder, numyears > 0, numyears.intValue(), numyears > 1, small ? "y" : " year", small);
+        formerAppend(builder, numdays > 0, numdays.intValue(), numdays > 1, small ? "d" : " day", small);
+        formerAppend(builder, numhours > 0, numhours.intValue(), numhours > 1, small ? "h" : " hour", small);
+        formerAppend(builder, numminutes > 0, numminutes.intValue(), numminutes > 1, small ? "m" : " minute", small);
+        formerAppend(builder, numseconds > 0, numseconds, numseconds > 1, small ? "s" : " second", small);
+        formerAppend(builder, nummillis > 0, nummillis, nummillis > 1, small ? " milli" : " millisecond", small);
+        formerAppend(builder, nummicros > 0, nummicros, nummicros > 1, small ? " micro" : " microsecond", small);
+        formerAppend(builder, numnanos > 0, numnanos, numnanos > 1, small ? " nano" : " nanosecond", small);
+        return builder.toString().trim();
+    }
+
+    private static void formerAppend(StringBuilder builder, boolean present, Object count, boolean plural, String suffix, boolean small) {
+        if (present) {
+            builder.append(count).append(suffix);
+            if (plural && !small) {
+                builder.append("s ");
+            } else {
+                builder.append(" ");
+            }
+        }
+    }
+}
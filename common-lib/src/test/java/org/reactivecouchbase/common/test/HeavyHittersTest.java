@@ -0,0 +1,68 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Clock;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.HeavyHitters;
+import org.reactivecouchbase.common.ManualClock;
+
+import java.util.List;
+
+public class HeavyHittersTest {
+
+    @Test
+    public void testFindsHottestKeys() {
+        ManualClock clock = Clock.manual(0L);
+        HeavyHitters<String> hitters = HeavyHitters.of(Duration.of("1 s"), 5, 2048, 4, clock);
+        long total = 0L;
+        for (int round = 0; round < 1000; round++) {
+            for (int hot = 0; hot < 8; hot++) {
+                // hot-0 gets 8 hits per round, hot-7 gets 1
+                if (round % 8 < 8 - hot) {
+                    hitters.increment("hot-" + hot);
+                    total++;
+                }
+            }
+            for (int cold = 0; cold < 20; cold++) {
+                hitters.increment("cold-" + round + "-" + cold);
+                total++;
+            }
+        }
+        Assert.assertEquals("hot-0", hitters.currentTop().get(0).key);
+        Assert.assertTrue(hitters.top().isEmpty());
+        clock.advance(Duration.of("1 s"));
+        List<HeavyHitters.Entry<String>> top = hitters.top();
+        Assert.assertEquals(5, top.size());
+        long slack = (long) (Math.E / 2048 * total);
+        for (int i = 0; i < 5; i++) {
+            long expected = 1000L * (8 - i) / 8;
+            Assert.assertEquals("hot-" + i, top.get(i).key);
+            Assert.assertTrue(top.get(i).count >= expected && top.get(i).count <= expected + slack);
+        }
+        Assert.assertEquals(hitters.getCount("hot-0"), top.get(0).rate().value.longValue());
+        Assert.assertEquals(top.get(0).count, hitters.rate("hot-0").perSecond().value.longValue());
+        clock.advance(Duration.of("2 s"));
+        Assert.assertTrue(hitters.top().isEmpty());
+        Assert.assertEquals(0L, hitters.getCount("hot-0"));
+    }
+
+    @Test
+    public void benchmarkIncrements() throws Exception {
+        Benchmarks.assumeEnabled();
+        HeavyHitters<String> hitters = HeavyHitters.of(Duration.of("10 s"), 20);
+        String[] keys = new String[100000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key-" + i;
+        }
+        Benchmarks.concurrent("HeavyHitters.increment", 4, 1000000, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                // skewed : half of the traffic on 10 keys
+                hitters.increment(keys[(i & 1) == 0 ? i % 10 : (i * 31) % keys.length]);
+            }
+        });
+        List<HeavyHitters.Entry<String>> top = hitters.currentTop();
+        Assert.assertEquals(20, top.size());
+        Assert.assertTrue(top.get(0).count >= 200000L);
+    }
+}
@@ -0,0 +1,109 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Clock;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.HyperLogLog;
+import org.reactivecouchbase.common.ManualClock;
+import org.reactivecouchbase.common.MeasuredDistinctCount;
+
+public class HyperLogLogTest {
+
+    private static void assertClose(long expected, long actual, double error) {
+        Assert.assertTrue("expected ~" + expected + " got " + actual, Math.abs(actual - expected) <= expected * error);
+    }
+
+    @Test
+    public void testEstimates() {
+        HyperLogLog sketch = HyperLogLog.of();
+        Assert.assertEquals(0L, sketch.estimate());
+        for (int i = 0; i < 1000; i++) {
+            sketch.add((long) i);
+            sketch.add((long) i);
+        }
+        assertClose(1000L, sketch.estimate(), 0.02);
+        for (int i = 0; i < 1000000; i++) {
+            sketch.add("document::" + i);
+        }
+        // 4 standard errors
+        assertClose(1001000L, sketch.estimate(), 0.033);
+    }
+
+    @Test
+    public void testMergeAndSerialization() {
+        HyperLogLog left = HyperLogLog.of(12);
+        HyperLogLog right = HyperLogLog.of(12);
+        for (int i = 0; i < 60000; i++) {
+            left.add((long) i);
+        }
+        for (int i = 40000; i < 100000; i++) {
+            right.add((long) i);
+        }
+        byte[] bytes = right.toBytes();
+        Assert.assertEquals(1 + 4096 * 6 / 8, bytes.length);
+        HyperLogLog copy = HyperLogLog.fromBytes(bytes);
+        Assert.assertEquals(right.estimate(), copy.estimate());
+        assertClose(100000L, left.merge(copy).estimate(), 0.065);
+        try {
+            left.merge(HyperLogLog.of(14));
+            Assert.fail("Precisions should match");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        HyperLogLog sketch = HyperLogLog.of();
+        Benchmarks.concurrent("HyperLogLog.add", 4, 500000, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                sketch.add((long) thread * iterations + i);
+            }
+        });
+        assertClose(2000000L, sketch.estimate(), 0.033);
+    }
+
+    @Test
+    public void testDistinctCountWindows() {
+        ManualClock clock = Clock.manual(0L);
+        MeasuredDistinctCount users = MeasuredDistinctCount.of(Duration.of("1 min"), 14, clock);
+        for (int i = 0; i < 5000; i++) {
+            users.add("user-" + (i % 500));
+        }
+        Assert.assertEquals(0L, users.getCount());
+        assertClose(500L, users.getCurrentCount(), 0.02);
+        clock.advance(Duration.of("1 min"));
+        assertClose(500L, users.getCount(), 0.02);
+        Assert.assertEquals(0L, users.getCurrentCount());
+        Assert.assertEquals(users.getCount(), HyperLogLog.fromBytes(users.lastSketch().toBytes()).estimate());
+        clock.advance(Duration.of("2 min"));
+        Assert.assertEquals(0L, users.getCount());
+
+        // merging into the returned sketch never touches the counter's windows
+        HyperLogLog remote = HyperLogLog.of(14);
+        remote.add("remote-user");
+        Assert.assertEquals(1L, users.lastSketch().merge(remote).estimate());
+        Assert.assertEquals(0L, users.getCount());
+        clock.advance(Duration.of("2 min"));
+        Assert.assertEquals(0L, users.getCount());
+    }
+
+    @Test
+    public void testUnionAndCopyDontModifySketches() {
+        HyperLogLog left = HyperLogLog.of(10);
+        HyperLogLog right = HyperLogLog.of(10);
+        for (int i = 0; i < 100; i++) {
+            left.add((long) i);
+            right.add((long) (i + 100));
+        }
+        long leftEstimate = left.estimate();
+        long rightEstimate = right.estimate();
+        assertClose(200L, HyperLogLog.union(left, right).estimate(), 0.1);
+        Assert.assertEquals(leftEstimate, left.estimate());
+        Assert.assertEquals(rightEstimate, right.estimate());
+        HyperLogLog copy = left.copy();
+        copy.add(1000L);
+        Assert.assertEquals(leftEstimate, left.estimate());
+    }
+}
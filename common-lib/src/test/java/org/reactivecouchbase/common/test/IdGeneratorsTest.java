@@ -0,0 +1,467 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Clock;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.HlcIdGenerator;
+import org.reactivecouchbase.common.IdGenerator;
+import org.reactivecouchbase.common.IdGenerators;
+import org.reactivecouchbase.common.Invariant;
+import org.reactivecouchbase.common.ManualClock;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class IdGeneratorsTest {
+
+    /**
+     * Copy of the former monitor based implementation, kept as a baseline for the benchmark.
+     */
+    static class SynchronizedIdGenerator {
+        private static final AtomicLong generatorId = new AtomicLong(1L);
+        private static final Long minus = 1288834974657L;
+        private static final AtomicLong counter = new AtomicLong(-1L);
+        private static final AtomicLong lastTimestamp = new AtomicLong(-1L);
+
+        static synchronized Long generateUniqueId() {
+            if (generatorId.get() > 1024L) {
+                throw new RuntimeException("Generator id can't be larger than 1024");
+            }
+            Long timestamp = System.currentTimeMillis();
+            if (timestamp < lastTimestamp.get()) {
+                throw new RuntimeException("Clock is running backward. Sorry :-(");
+            }
+            lastTimestamp.set(timestamp);
+            counter.compareAndSet(4095, -1L);
+            return ((timestamp - minus) << 22L) | (generatorId.get() << 10L) | counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Copy of the former UUID and token generation, kept as a baseline for the benchmark.
+     */
+    static class RandomListIds {
+        private static final List<String> CHARACTERS = new ArrayList<>();
+        private static final List<String> INIT_STRING = new ArrayList<>();
+        private static final Random RANDOM = new Random();
+
+        static {
+            for (char c : "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray()) {
+                CHARACTERS.add(String.valueOf(c));
+            }
+            for (int b = 0; b <= 15; b++) {
+                INIT_STRING.add(Integer.toHexString(b));
+            }
+        }
+
+        static String generateUUID() {
+            StringBuilder builder = new StringBuilder();
+            for (int c = 0; c <= 36; c++) {
+                if (c == 9 || c == 14 || c == 19 || c == 24) {
+                    builder.append("-");
+                } else if (c == 15) {
+                    builder.append("4");
+                } else if (c == 20) {
+                    Double rand = RANDOM.nextDouble() * 4.0;
+                    builder.append(INIT_STRING.get(rand.intValue() | 8));
+                } else {
+                    Double rand = RANDOM.nextDouble() * 15.0;
+                    builder.append(INIT_STRING.get(rand.intValue() | 0));
+                }
+            }
+            return builder.toString();
+        }
+
+        static String generateToken(int size) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                Integer rand = RANDOM.nextInt(CHARACTERS.size());
+                builder.append(CHARACTERS.get(rand));
+            }
+            return builder.toString();
+        }
+    }
+
+    @Test
+    public void testUuidAndTokenShape() {
+        String uuid = IdGenerators.uuid();
+        Assert.assertEquals(IdGenerators.UUID_LENGTH, uuid.length());
+        Assert.assertTrue(uuid.matches("[0-9a-f]{9}-[0-9a-f]{4}-4[0-9a-f]{3}-[89ab][0-9a-f]{3}-[0-9a-f]{12}"));
+        Assert.assertEquals(RandomListIds.generateUUID().length(), uuid.length());
+        Assert.assertTrue(IdGenerators.token().matches("[A-Za-z0-9]{64}"));
+        Assert.assertEquals(12, IdGenerators.longToken(12).length());
+        ByteBuffer buffer = ByteBuffer.allocate(IdGenerators.UUID_LENGTH + 16);
+        IdGenerators.generateUUID(buffer);
+        IdGenerators.generateToken(16, buffer);
+        Assert.assertEquals(buffer.capacity(), buffer.position());
+    }
+
+    @Test
+    public void testUuidV7IsTimeOrdered() {
+        String last = IdGenerators.uuidV7();
+        for (int i = 0; i < 10000; i++) {
+            String next = IdGenerators.uuidV7();
+            Assert.assertTrue(next.compareTo(last) > 0);
+            last = next;
+        }
+        UUID uuid = UUID.fromString(last);
+        Assert.assertEquals(last, uuid.toString());
+        Assert.assertEquals(7, uuid.version());
+        Assert.assertEquals(2, uuid.variant());
+        Assert.assertTrue(Math.abs((uuid.getMostSignificantBits() >>> 16) - System.currentTimeMillis()) < 60000L);
+        Assert.assertEquals(7, IdGenerators.generateUUIDv7Value().version());
+    }
+
+    @Test
+    public void testSortableEncodingRoundTrip() {
+        long[] values = {0L, 1L, 61L, 62L, Long.MAX_VALUE, Long.MIN_VALUE, -1L, IdGenerators.uniqueId()};
+        for (long value : values) {
+            Assert.assertEquals(value, IdGenerators.decodeSortable(IdGenerators.encodeSortable(value)));
+        }
+        Random random = new Random(42L);
+        StringBuilder builder = new StringBuilder("key::");
+        for (int i = 0; i < 10000; i++) {
+            long a = random.nextLong();
+            long b = random.nextLong();
+            Assert.assertEquals(Long.signum(Long.compareUnsigned(a, b)), Integer.signum(IdGenerators.encodeSortable(a).compareTo(IdGenerators.encodeSortable(b))));
+            builder.setLength(5);
+            IdGenerators.encodeSortable(a, builder);
+            Assert.assertEquals(a, IdGenerators.decodeSortable(builder, 5));
+        }
+        Assert.assertTrue(IdGenerators.sortableUniqueId().compareTo(IdGenerators.sortableUniqueId()) < 0);
+    }
+
+    @Test(expected = Invariant.InvariantException.class)
+    public void testSortableDecodingRejectsOverflow() {
+        IdGenerators.decodeSortable("zzzzzzzzzzz");
+    }
+
+    @Test
+    public void testSecureTokensAreUniform() {
+        char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+        int[] counts = new int[128];
+        char[] token = new char[62000];
+        IdGenerators.generateSecureToken(alphabet, token.length, token, 0);
+        for (char c : token) {
+            counts[c]++;
+        }
+        for (char c : alphabet) {
+            // expected 1000 per character, 6 standard deviations is about 190
+            Assert.assertTrue("Biased character " + c, Math.abs(counts[c] - 1000) < 200);
+        }
+        Assert.assertTrue(IdGenerators.secureToken().matches("[A-Za-z0-9]{64}"));
+        Assert.assertEquals(32, IdGenerators.secureLongToken(32).length());
+    }
+
+    @Test
+    public void benchmarkUuidAndTokens() {
+        Benchmarks.assumeEnabled();
+        char[] chars = new char[64];
+        char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+        StringBuilder builder = new StringBuilder(64);
+        int iterations = 200000;
+        Benchmarks.allocation("former generateUUID", iterations, () -> RandomListIds.generateUUID().length());
+        Benchmarks.allocation("generateUUID", iterations, () -> IdGenerators.generateUUID().length());
+        Benchmarks.allocation("generateUUID(char[])", iterations, () -> {
+            IdGenerators.generateUUID(chars, 0);
+            return chars[0];
+        });
+        Benchmarks.allocation("generateUUID(StringBuilder)", iterations, () -> {
+            builder.setLength(0);
+            IdGenerators.generateUUID(builder);
+            return builder.length();
+        });
+        Benchmarks.allocation("former generateToken(64)", iterations, () -> RandomListIds.generateToken(64).length());
+        Benchmarks.allocation("generateToken(64)", iterations, () -> IdGenerators.generateToken(64).length());
+        Benchmarks.allocation("generateToken(char[], 64, char[])", iterations, () -> {
+            IdGenerators.generateToken(alphabet, 64, chars, 0);
+            return chars[0];
+        });
+        SecureRandom secureRandom = new SecureRandom();
+        Benchmarks.allocation("SecureRandom.nextInt token(64)", iterations / 10, () -> {
+            for (int i = 0; i < 64; i++) {
+                chars[i] = alphabet[secureRandom.nextInt(alphabet.length)];
+            }
+            return chars[0];
+        });
+        Benchmarks.allocation("secureToken(64)", iterations, () -> IdGenerators.secureToken(64).length());
+        Benchmarks.allocation("generateSecureToken(char[], 64, char[])", iterations, () -> {
+            IdGenerators.generateSecureToken(alphabet, 64, chars, 0);
+            return chars[0];
+        });
+    }
+
+    @Test
+    public void testUniqueIdLayout() {
+        long before = System.currentTimeMillis();
+        long first = IdGenerators.generateUniqueId();
+        long second = IdGenerators.uniqueId();
+        long after = System.currentTimeMillis();
+        long timestamp = (first >>> 22L) + 1288834974657L;
+        Assert.assertTrue(timestamp >= before && timestamp <= after);
+        Assert.assertTrue(second > first);
+    }
+
+    @Test
+    public void testIdIntrospection() {
+        IdGenerators.setGeneratorId(42L);
+        try {
+            long before = System.currentTimeMillis();
+            long id = IdGenerators.uniqueId();
+            long after = System.currentTimeMillis();
+            Assert.assertTrue(IdGenerators.timestampOf(id) >= before && IdGenerators.timestampOf(id) <= after);
+            Assert.assertEquals(42L, IdGenerators.generatorIdOf(id));
+            Assert.assertTrue(IdGenerators.idRange(before, after).contains(id));
+            Assert.assertFalse(IdGenerators.idRange(after + 1L, after + 1000L).contains(id));
+            Assert.assertTrue(IdGenerators.idRangeOfLast(Duration.of("1 min")).contains(id));
+        } finally {
+            IdGenerators.setGeneratorId(1L);
+        }
+        IdGenerator.Layout layout = IdGenerator.Layout.of(1400000000000L, 39, 14, 10);
+        long id = layout.compose(123456L, 9999L, 777L);
+        Assert.assertEquals(1400000123456L, layout.timestampOf(id));
+        Assert.assertEquals(9999L, layout.nodeIdOf(id));
+        Assert.assertEquals(777L, layout.sequenceOf(id));
+        IdGenerator.IdRange range = layout.range(1400000123456L, 1400000123456L);
+        Assert.assertTrue(range.contains(id));
+        Assert.assertTrue(range.max < layout.minIdAt(1400000123457L));
+    }
+
+    @Test
+    public void testRangeOfLastReadsTheGeneratorClock() {
+        ManualClock clock = Clock.manual(1500000000000L);
+        IdGenerator generator = IdGenerator.of(IdGenerator.Layout.DEFAULT, 3L, IdGenerator.WaitStrategy.SPIN, clock);
+        long id = generator.nextId();
+        Assert.assertTrue(generator.rangeOfLast(Duration.of("1 s")).contains(id));
+        Assert.assertTrue(IdGenerator.Layout.DEFAULT.rangeOfLast(Duration.of("1 s"), clock).contains(id));
+        // the system clock is years after the manual one
+        Assert.assertFalse(IdGenerator.Layout.DEFAULT.rangeOfLast(Duration.of("1 s")).contains(id));
+        clock.advance(2L, TimeUnit.SECONDS);
+        Assert.assertFalse(generator.rangeOfLast(Duration.of("1 s")).contains(id));
+
+        // generating unique ids would move the shared sequence back in time, only the range is checked
+        IdGenerators.setClock(clock);
+        try {
+            IdGenerator.IdRange range = IdGenerators.idRangeOfLast(Duration.of("1 s"));
+            Assert.assertEquals(IdGenerators.idRange(1500000001000L, 1500000002000L).min, range.min);
+            Assert.assertEquals(IdGenerators.idRange(1500000001000L, 1500000002000L).max, range.max);
+        } finally {
+            IdGenerators.setClock(Clock.system());
+        }
+    }
+
+    @Test
+    public void testUniqueIdsAcrossThreads() throws Exception {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Benchmarks.concurrent("uniqueId/uniqueness", 8, 500, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                ids.add(IdGenerators.uniqueId());
+            }
+        });
+        Assert.assertEquals(4000, ids.size());
+    }
+
+    @Test
+    public void testReserveCrossesSequenceCeiling() {
+        long[] ids = IdGenerators.reserve(10000);
+        for (int i = 1; i < ids.length; i++) {
+            Assert.assertTrue("ids should be strictly increasing", ids[i] > ids[i - 1]);
+        }
+        Assert.assertEquals(10000L, IdGenerators.reserveStream(5000).distinct().count() + 5000L);
+        IdGenerators.IdBlock block = IdGenerators.reserveBlock(3);
+        long last = block.next();
+        while (block.hasNext()) {
+            long next = block.next();
+            Assert.assertTrue(next > last);
+            last = next;
+        }
+        Assert.assertEquals(0, block.remaining());
+        Assert.assertTrue(block.reserve(5000).get(0) > last);
+    }
+
+    @Test
+    public void testUniqueIdAndReserveShareSequenceCeiling() throws Exception {
+        ManualClock clock = Clock.manual(System.currentTimeMillis());
+        IdGenerators.setClock(clock);
+        try {
+            List<Long> ids = new ArrayList<>();
+            for (int round = 0; round < 3; round++) {
+                long first = IdGenerators.generateUniqueId();
+                ids.add(first);
+                // fills the millisecond up to sequence 4095
+                for (long id : IdGenerators.reserve((int) (4095L - IdGenerators.sequenceOf(first)))) {
+                    ids.add(id);
+                }
+                Thread ticker = new Thread(() -> {
+                    try {
+                        Thread.sleep(20L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    clock.advance(1L, TimeUnit.MILLISECONDS);
+                });
+                ticker.start();
+                long next = IdGenerators.generateUniqueId();
+                ticker.join();
+                Assert.assertEquals(IdGenerators.timestampOf(first) + 1L, IdGenerators.timestampOf(next));
+                Assert.assertEquals(0L, IdGenerators.sequenceOf(next));
+                ids.add(next);
+                for (long id : IdGenerators.reserve(10)) {
+                    ids.add(id);
+                }
+            }
+            for (int i = 1; i < ids.size(); i++) {
+                Assert.assertTrue("ids should be strictly increasing", ids.get(i) > ids.get(i - 1));
+            }
+        } finally {
+            IdGenerators.setClock(Clock.system());
+        }
+    }
+
+    @Test
+    public void testIdGeneratorWaitsWhenSequenceIsExhausted() throws Exception {
+        IdGenerator.Layout layout = IdGenerator.Layout.of(1288834974657L, 41, 16, 4);
+        IdGenerator generator = IdGenerator.of(layout, 40000L, IdGenerator.WaitStrategy.PARK);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        Benchmarks.concurrent("IdGenerator/exhaustion", 4, 50, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                ids.add(generator.nextId());
+            }
+        });
+        Assert.assertEquals(200, ids.size());
+        Assert.assertTrue(generator.exhaustionWaits() > 0L);
+        long[] reserved = generator.reserve(100);
+        for (int i = 1; i < reserved.length; i++) {
+            Assert.assertTrue(reserved[i] > reserved[i - 1]);
+        }
+        Assert.assertEquals(40000L, (reserved[0] >>> 4) & layout.maxNodeId());
+    }
+
+    @Test(expected = Invariant.InvariantException.class)
+    public void testIdGeneratorRejectsNodeOutOfLayout() {
+        IdGenerator.of(1024L);
+    }
+
+    @Test
+    public void testHlcIdGeneratorRunsAheadWithinSkewBound() {
+        IdGenerator.Layout layout = IdGenerator.Layout.of(1288834974657L, 41, 10, 2);
+        HlcIdGenerator generator = HlcIdGenerator.of(layout, 1L, Duration.of("1 h"));
+        long last = generator.nextId();
+        for (int i = 0; i < 1000; i++) {
+            long next = generator.nextId();
+            Assert.assertTrue(next > last);
+            last = next;
+        }
+        long remote = layout.compose((last >>> 12L) + 100L, 2L, 3L);
+        generator.update(remote);
+        Assert.assertTrue(generator.nextId() > remote);
+        Assert.assertTrue(generator.maxObservedSkew().toMillis() >= 100L);
+        Assert.assertEquals(0L, generator.skewRejections());
+    }
+
+    @Test
+    public void testHlcIdGeneratorFailsPastSkewBound() {
+        IdGenerator.Layout layout = IdGenerator.Layout.of(1288834974657L, 41, 10, 2);
+        HlcIdGenerator generator = HlcIdGenerator.of(layout, 1L, Duration.of("10 ms"));
+        try {
+            for (int i = 0; i < 1000; i++) {
+                generator.nextId();
+            }
+            Assert.fail("Skew bound should have been exceeded");
+        } catch (HlcIdGenerator.ClockSkewException e) {
+            Assert.assertEquals(1L, generator.skewRejections());
+        }
+    }
+
+    @Test
+    public void testHlcIdGeneratorSurvivesClockRegression() {
+        ManualClock clock = Clock.manual(IdGenerator.Layout.DEFAULT.epoch + 1000000L);
+        HlcIdGenerator generator = HlcIdGenerator.of(IdGenerator.Layout.DEFAULT, 3L, Duration.of("5 s"), clock);
+        long before = generator.nextId();
+        clock.set(clock.currentTimeMillis() - 2000L);
+        long after = generator.nextId();
+        Assert.assertTrue(after > before);
+        Assert.assertEquals(IdGenerator.Layout.DEFAULT.timestampOf(before), IdGenerator.Layout.DEFAULT.timestampOf(after));
+        Assert.assertEquals(1L, generator.regressions());
+        Assert.assertEquals(2000L, generator.currentSkew().toMillis());
+        clock.advance(Duration.of("2001 ms"));
+        Assert.assertEquals(0L, generator.currentSkew().toMillis());
+        Assert.assertTrue(generator.nextId() > after);
+        clock.set(clock.currentTimeMillis() - 6000L);
+        try {
+            generator.nextId();
+            Assert.fail("Clock skew should be rejected");
+        } catch (HlcIdGenerator.ClockSkewException e) {
+            Assert.assertEquals(1L, generator.skewRejections());
+        }
+    }
+
+    @Test
+    public void testIdGeneratorRejectsClockRegression() {
+        ManualClock clock = Clock.manual(IdGenerator.Layout.DEFAULT.epoch + 1000000L);
+        IdGenerator generator = IdGenerator.of(IdGenerator.Layout.DEFAULT, 3L, IdGenerator.WaitStrategy.SPIN, clock);
+        long first = generator.nextId();
+        Assert.assertEquals(first + 1L, generator.nextId());
+        clock.set(clock.currentTimeMillis() - 1L);
+        try {
+            generator.nextId();
+            Assert.fail("Clock regression should be rejected");
+        } catch (RuntimeException e) {
+            Assert.assertEquals("Clock is running backward. Sorry :-(", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testNoDuplicateIdsUnderContention() throws Exception {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        Assert.assertEquals(0L, duplicates("generateUniqueId/uniqueness", threads, 20000, IdGenerators::generateUniqueId));
+        Assert.assertEquals(0L, duplicates("IdGenerator.nextId/uniqueness", threads, 20000, IdGenerator.of(1L)::nextId));
+    }
+
+    @Test
+    public void benchmarkUniqueIds() throws Exception {
+        Benchmarks.assumeEnabled();
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        int iterations = 200000;
+        // the former generator wraps its sequence after 4096 ids in the same millisecond, duplicates are expected
+        duplicates("synchronized generateUniqueId", threads, iterations, SynchronizedIdGenerator::generateUniqueId);
+        Assert.assertEquals(0L, duplicates("lock-free generateUniqueId", threads, iterations, IdGenerators::generateUniqueId));
+        Assert.assertEquals(0L, duplicates("IdGenerator.nextId", threads, iterations, IdGenerator.of(1L)::nextId));
+    }
+
+    /**
+     * Generates `iterations` ids on each of `threads` threads and returns how many of them are duplicates
+     */
+    private static long duplicates(String name, int threads, int iterations, LongSupplier generator) throws Exception {
+        long[][] ids = new long[threads][iterations];
+        Benchmarks.concurrent(name, threads, iterations, (thread, count) -> {
+            long[] local = ids[thread];
+            for (int i = 0; i < count; i++) {
+                local[i] = generator.getAsLong();
+            }
+        });
+        long[] all = new long[threads * iterations];
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(ids[t], 0, all, t * iterations, iterations);
+        }
+        Arrays.sort(all);
+        long duplicates = 0L;
+        for (int i = 1; i < all.length; i++) {
+            if (all[i] == all[i - 1]) {
+                duplicates++;
+            }
+        }
+        return duplicates;
+    }
+}
@@ -0,0 +1,116 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.LatencyHistogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = LatencyHistogram.of(Duration.of("1 min"), 3);
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(10000L, snapshot.count());
+        assertWithinPrecision(5000000L, snapshot.p50().toNanos());
+        assertWithinPrecision(9000000L, snapshot.p90().toNanos());
+        assertWithinPrecision(9900000L, snapshot.p99().toNanos());
+        assertWithinPrecision(9990000L, snapshot.p999().toNanos());
+        Assert.assertEquals(10000000L, snapshot.max().toNanos());
+        assertWithinPrecision(5000500L, snapshot.mean().toNanos());
+    }
+
+    @Test
+    public void testSnapshotAndResetAndOverflow() throws Exception {
+        LatencyHistogram histogram = LatencyHistogram.of(Duration.of("1 s"), 2);
+        histogram.record(Duration.of("5 s"));
+        histogram.record(-1L);
+        Duration.measureNanos().recordTo(histogram);
+        long start = histogram.start();
+        Thread.sleep(5L);
+        Assert.assertTrue(histogram.recordSince(start) >= TimeUnit.MILLISECONDS.toNanos(5L));
+        LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+        Assert.assertEquals(4L, snapshot.count());
+        Assert.assertEquals(TimeUnit.SECONDS.toNanos(1L), snapshot.max().toNanos());
+        Assert.assertEquals(0L, histogram.snapshot().count());
+        Assert.assertEquals(0L, histogram.snapshot().p99().toNanos());
+    }
+
+    @Test
+    public void testRecycledSnapshot() {
+        LatencyHistogram histogram = LatencyHistogram.of(Duration.of("1 s"), 2);
+        histogram.record(1000L);
+        LatencyHistogram.Snapshot first = histogram.snapshot(null);
+        Assert.assertEquals(1L, first.count());
+        histogram.record(Duration.of("10 ms"));
+        LatencyHistogram.Snapshot second = histogram.snapshot(first);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(2L, second.count());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(10L), second.max().toNanos());
+        // a snapshot of another histogram isn't reused
+        LatencyHistogram other = LatencyHistogram.of(Duration.of("1 s"), 2);
+        LatencyHistogram.Snapshot empty = other.snapshot(second);
+        Assert.assertTrue(empty != second);
+        Assert.assertEquals(0L, empty.count());
+        Assert.assertEquals(2L, second.count());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        LatencyHistogram histogram = LatencyHistogram.of();
+        Benchmarks.concurrent("LatencyHistogram.record", 8, 100000, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                histogram.record(i);
+            }
+        });
+        Assert.assertEquals(800000L, histogram.snapshot().count());
+    }
+
+    @Test
+    public void testSnapshotAndResetKeepsMaxWithItsCount() throws Exception {
+        LatencyHistogram histogram = LatencyHistogram.of();
+        histogram.record(5000000L);
+        Assert.assertEquals(5000000L, histogram.snapshotAndReset().max().toNanos());
+        histogram.record(1000L);
+        Assert.assertEquals(1000L, histogram.snapshotAndReset().max().toNanos());
+        Assert.assertEquals(0L, histogram.snapshotAndReset().max().toNanos());
+        // intervals taken while recording : each max is the highest value counted in its own interval
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong recorded = new AtomicLong();
+        Thread recorder = new Thread(() -> {
+            for (long i = 1L; running.get(); i++) {
+                histogram.record((i % 1000L) * 1000L);
+                recorded.incrementAndGet();
+            }
+        });
+        recorder.start();
+        long counted = 0L;
+        for (int i = 0; i < 2000; i++) {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshotAndReset();
+            assertWithinPrecision(snapshot.valueAtPercentile(100.0), snapshot.max().toNanos());
+            counted += snapshot.count();
+        }
+        running.set(false);
+        recorder.join();
+        counted += histogram.snapshotAndReset().count();
+        Assert.assertEquals(recorded.get(), counted);
+    }
+
+    @Test
+    public void benchmarkRecording() {
+        Benchmarks.assumeEnabled();
+        LatencyHistogram histogram = LatencyHistogram.of();
+        Benchmarks.allocation("Measurable.recordTo", 200000, () -> Duration.measureNanos().recordTo(histogram));
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + " got " + actual, Math.abs(expected - actual) <= expected / 1000L + 1L);
+    }
+}
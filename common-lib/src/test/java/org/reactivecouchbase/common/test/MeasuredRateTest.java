@@ -1,10 +1,17 @@
 package org.reactivecouchbase.common.test;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
+import org.reactivecouchbase.common.Clock;
 import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.EwmaMeter;
+import org.reactivecouchbase.common.Invariant;
+import org.reactivecouchbase.common.ManualClock;
 import org.reactivecouchbase.common.MeasuredRate;
+import org.reactivecouchbase.common.RollingMeasuredRate;
+import org.reactivecouchbase.common.StripedMeasuredRate;
 
 import java.math.BigDecimal;
 import java.util.function.Function;
@@ -32,4 +39,170 @@ public class MeasuredRateTest {
         System.out.println(rate.perYear());
     }
 
-} 
+    @Test
+    public void testFastRates() {
+        MeasuredRate.Rate rate = new MeasuredRate.Rate(BigDecimal.valueOf(10L), Duration.of("10 milli"));
+        MeasuredRate.FastRate fastRate = rate.toFastRate();
+        Assert.assertEquals(rate.perMillisecond().value.doubleValue(), fastRate.perMillisecond(), 0.001);
+        Assert.assertEquals(rate.perSecond().value.doubleValue(), fastRate.perSecond(), 0.001);
+        Assert.assertEquals(rate.perMinute().value.doubleValue(), fastRate.perMinute(), 0.001);
+        Assert.assertEquals(rate.perHour().value.doubleValue(), fastRate.perHour(), 0.001);
+        Assert.assertEquals(rate.perDay().value.doubleValue(), fastRate.perDay(), 0.001);
+        Assert.assertEquals(rate.perMonth().value.doubleValue(), fastRate.perMonth(), 0.001);
+        Assert.assertEquals(rate.perYear().value.doubleValue(), fastRate.perYear(), 0.001);
+        Assert.assertEquals(rate.perSecond().value, fastRate.toRate().perSecond().value);
+        Assert.assertEquals(0.0, MeasuredRate.of(1000L).fastRate().perSecond(), 0.0);
+    }
+
+    @Test
+    public void benchmarkRateConversions() {
+        Benchmarks.assumeEnabled();
+        MeasuredRate.Rate rate = new MeasuredRate.Rate(BigDecimal.valueOf(1234L), Duration.of("10 s"));
+        MeasuredRate.FastRate fastRate = rate.toFastRate();
+        Benchmarks.allocation("Rate.perSecond", 1000000, () -> rate.perSecond().value.signum());
+        Benchmarks.allocation("FastRate.perSecond", 1000000, () -> (long) fastRate.perSecond());
+    }
+
+    @Test
+    public void testStripedRateCountsEveryIncrement() throws Exception {
+        StripedMeasuredRate rate = StripedMeasuredRate.of(Duration.of("1 h"));
+        Benchmarks.concurrent("StripedMeasuredRate/count", 8, 10000, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                rate.mark();
+            }
+        });
+        rate.increment(20L);
+        Assert.assertEquals(80020L, rate.getCurrentCount());
+        Assert.assertEquals(0L, rate.getCount());
+    }
+
+    @Test
+    public void testStripedRateRollsWindow() throws Exception {
+        StripedMeasuredRate rate = StripedMeasuredRate.of(100L);
+        rate.mark(10L);
+        Thread.sleep(150L);
+        Assert.assertEquals(10L, rate.getCount());
+        Assert.assertEquals(0L, rate.getCurrentCount());
+        Thread.sleep(250L);
+        Assert.assertEquals(0L, rate.getCount());
+    }
+
+    @Test
+    public void testRollingRateSlides() throws Exception {
+        RollingMeasuredRate rate = RollingMeasuredRate.of(Duration.of("400 ms"), 4);
+        rate.mark(5L);
+        Assert.assertEquals(5L, rate.getCurrentCount());
+        Thread.sleep(150L);
+        rate.mark(3L);
+        Assert.assertEquals(5L, rate.getCount());
+        Assert.assertEquals(8L, rate.getCurrentCount());
+        Thread.sleep(600L);
+        Assert.assertEquals(0L, rate.getCount());
+        Assert.assertEquals(0L, rate.rate().value.longValue());
+    }
+
+    @Test
+    public void testEwmaRatesDecay() throws Exception {
+        ManualClock clock = Clock.manual(0L);
+        EwmaMeter meter = EwmaMeter.of(Duration.of("1 s"), clock);
+        Assert.assertEquals(0.0, meter.oneMinuteRate().value.doubleValue(), 0.0);
+        meter.mark(100L);
+        clock.advance(Duration.of("1 s"));
+        // first tick initializes the averages with the instant rate
+        Assert.assertEquals(100.0, meter.oneMinuteFastRate().perSecond(), 0.0);
+        clock.advance(Duration.of("3 s"));
+        // three idle ticks folded at once
+        Assert.assertEquals(100.0 * Math.exp(-3.0 / 60.0), meter.oneMinuteFastRate().perSecond(), 1e-9);
+        Assert.assertEquals(100.0 * Math.exp(-3.0 / 900.0), meter.fifteenMinuteFastRate().perSecond(), 1e-9);
+        Assert.assertEquals(100L, meter.count());
+        Assert.assertEquals(25.0, meter.meanFastRate().perSecond(), 1e-9);
+    }
+
+    @Test
+    public void testRollingRateIncrementBounds() {
+        ManualClock clock = Clock.manual(0L);
+        RollingMeasuredRate rolling = RollingMeasuredRate.of(Duration.of("1 s"), 10, clock);
+        try {
+            rolling.increment(-1L);
+            Assert.fail("Negative increments should be rejected");
+        } catch (Invariant.InvariantException e) {
+            // expected
+        }
+        // a sub-bucket count saturates instead of carrying into the sub-bucket index packed with it
+        long max = (1L << 40) - 1L;
+        rolling.increment(max);
+        rolling.increment(max);
+        rolling.increment(Long.MAX_VALUE);
+        Assert.assertEquals(max, rolling.getCurrentCount());
+        clock.advance(Duration.of("100 ms"));
+        rolling.increment(2L);
+        Assert.assertEquals(max, rolling.getCount());
+        Assert.assertEquals(max + 2L, rolling.getCurrentCount());
+        clock.advance(Duration.of("1 s"));
+        Assert.assertEquals(2L, rolling.getCount());
+    }
+
+    @Test
+    public void testRatesWithManualClock() throws Exception {
+        ManualClock clock = Clock.manual(0L);
+        MeasuredRate rate = MeasuredRate.of(Duration.of("1 s"), clock);
+        RollingMeasuredRate rolling = RollingMeasuredRate.of(Duration.of("1 s"), 10, clock);
+        StripedMeasuredRate striped = StripedMeasuredRate.of(Duration.of("1 s"), clock);
+        rate.increment(5L);
+        rolling.increment(5L);
+        striped.increment(5L);
+        clock.advance(Duration.of("500 ms"));
+        rolling.increment(3L);
+        Assert.assertEquals(0L, rate.getCount());
+        Assert.assertEquals(5L, rolling.getCount());
+        Assert.assertEquals(8L, rolling.getCurrentCount());
+        clock.advance(Duration.of("501 ms"));
+        Assert.assertEquals(5L, rate.getCount());
+        Assert.assertEquals(5L, striped.getCount());
+        Assert.assertEquals(8L, rolling.getCount());
+        Assert.assertEquals(5.0, rate.fastRate().perSecond(), 0.0);
+        clock.advance(Duration.of("100 ms"));
+        // the first sub-bucket slid out of the window
+        Assert.assertEquals(3L, rolling.getCount());
+    }
+
+    @Test
+    public void benchmarkClocks() throws Exception {
+        Benchmarks.assumeEnabled();
+        Clock system = Clock.system();
+        Clock cached = Clock.cached();
+        Benchmarks.concurrent("Clock.system().currentTimeMillis", 1, 20000000, (thread, iterations) -> {
+            long sum = 0L;
+            for (int i = 0; i < iterations; i++) {
+                sum += system.currentTimeMillis();
+            }
+            Assert.assertTrue(sum != 0L);
+        });
+        Benchmarks.concurrent("Clock.cached().currentTimeMillis", 1, 20000000, (thread, iterations) -> {
+            long sum = 0L;
+            for (int i = 0; i < iterations; i++) {
+                sum += cached.currentTimeMillis();
+            }
+            Assert.assertTrue(sum != 0L);
+        });
+    }
+
+    @Test
+    public void benchmarkContention() throws Exception {
+        Benchmarks.assumeEnabled();
+        int threads = Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        int iterations = 500000;
+        MeasuredRate measuredRate = MeasuredRate.of(Duration.of("1 s"));
+        StripedMeasuredRate stripedRate = StripedMeasuredRate.of(Duration.of("1 s"));
+        Benchmarks.concurrent("MeasuredRate.increment", threads, iterations, (thread, count) -> {
+            for (int i = 0; i < count; i++) {
+                measuredRate.increment();
+            }
+        });
+        Benchmarks.concurrent("StripedMeasuredRate.increment", threads, iterations, (thread, count) -> {
+            for (int i = 0; i < count; i++) {
+                stripedRate.increment();
+            }
+        });
+    }
+}
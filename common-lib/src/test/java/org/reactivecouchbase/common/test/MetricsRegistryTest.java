@@ -0,0 +1,145 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.EwmaMeter;
+import org.reactivecouchbase.common.Invariant;
+import org.reactivecouchbase.common.LatencyHistogram;
+import org.reactivecouchbase.common.MeasuredRate;
+import org.reactivecouchbase.common.MetricsRegistry;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+public class MetricsRegistryTest {
+
+    private static MetricsRegistry registry() {
+        MetricsRegistry registry = MetricsRegistry.of();
+        EwmaMeter meter = registry.meter("http.requests");
+        meter.mark(42L);
+        LatencyHistogram histogram = registry.histogram("db_latency");
+        histogram.record(Duration.of(2L, TimeUnit.MILLISECONDS));
+        histogram.record(Duration.of(4L, TimeUnit.MILLISECONDS));
+        registry.register("ops", MeasuredRate.of(Duration.of("1 s")));
+        registry.gauge("queue_size", () -> 1.5);
+        registry.gauge("temperature", () -> -0.25);
+        registry.gauge("unknown", () -> Double.NaN);
+        return registry;
+    }
+
+    @Test
+    public void testCollect() {
+        MetricsRegistry registry = registry();
+        Assert.assertSame(registry.meter("http.requests"), registry.meter("http.requests"));
+        try {
+            registry.histogram("http.requests");
+            Assert.fail("Kind mismatch should be rejected");
+        } catch (Invariant.InvariantException e) {
+            // expected
+        }
+        MetricsRegistry.Snapshot snapshot = registry.collect();
+        Assert.assertEquals(6, snapshot.size());
+        Assert.assertEquals("db_latency", snapshot.name(0));
+        int meter = snapshot.indexOf("http.requests");
+        Assert.assertEquals(MetricsRegistry.Kind.METER, snapshot.kind(meter));
+        Assert.assertEquals(42.0, snapshot.value(meter, MetricsRegistry.Kind.METER.indexOf("count")), 0.0);
+        int histogram = snapshot.indexOf("db_latency");
+        Assert.assertEquals(2.0, snapshot.value(histogram, 0), 0.0);
+        double max = snapshot.value(histogram, MetricsRegistry.Kind.HISTOGRAM.indexOf("max"));
+        Assert.assertEquals(4000000.0, max, 40000.0);
+        Assert.assertEquals(-1, snapshot.indexOf("missing"));
+        Assert.assertTrue(registry.remove("ops"));
+        Assert.assertEquals(5, registry.collect().size());
+    }
+
+    @Test
+    public void testExportedSeriesDontCollide() {
+        MetricsRegistry registry = registry();
+        // db_latency_seconds..., http_requests_total and http_requests_rate, ops_count and ops_rate are taken
+        assertRejected(() -> registry.histogram("db.latency"));
+        assertRejected(() -> registry.gauge("http_requests_rate", () -> 1.0));
+        assertRejected(() -> registry.gauge("ops_count", () -> 1.0));
+        assertRejected(() -> registry.register("db_latency_seconds", MeasuredRate.of(Duration.of("1 s"))));
+        assertRejected(() -> registry.gauge("http.requests", () -> 1.0));
+        Assert.assertFalse(registry.contains("http_requests_rate"));
+        Assert.assertFalse(registry.contains("db.latency"));
+        Assert.assertFalse(registry.contains("db_latency_seconds"));
+        // series that don't collide are fine, even next to similar names
+        registry.gauge("http_requests", () -> 1.0);
+        registry.gauge("ops_total", () -> 1.0);
+        // the exported series are free again once removed
+        Assert.assertTrue(registry.remove("http.requests"));
+        registry.gauge("http_requests_rate", () -> 1.0);
+        Assert.assertEquals(8, registry.collect().size());
+        StringBuilder text = new StringBuilder();
+        registry.collect().writePrometheus(text);
+        Assert.assertTrue(text.toString().contains("\nhttp_requests_rate 1\n"));
+    }
+
+    private static void assertRejected(Runnable registration) {
+        try {
+            registration.run();
+            Assert.fail("Colliding series should be rejected");
+        } catch (Invariant.InvariantException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPrometheusAndJson() {
+        MetricsRegistry.Snapshot snapshot = registry().collect();
+        StringBuilder prometheus = new StringBuilder();
+        snapshot.writePrometheus(prometheus);
+        String text = prometheus.toString();
+        Assert.assertTrue(text.contains("# TYPE http_requests_total counter\nhttp_requests_total 42\n"));
+        Assert.assertTrue(text.contains("http_requests_rate{window=\"1m\"} "));
+        Assert.assertTrue(text.contains("# TYPE db_latency_seconds summary\n"));
+        Assert.assertTrue(text.contains("db_latency_seconds_count 2\n"));
+        Assert.assertTrue(text.contains("queue_size 1.5\n"));
+        Assert.assertTrue(text.contains("temperature -0.25\n"));
+        Assert.assertTrue(text.contains("unknown NaN\n"));
+        Assert.assertTrue(text.contains("ops_count 0\n# TYPE ops_rate gauge\nops_rate 0\n"));
+
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        snapshot.writePrometheus(buffer);
+        buffer.flip();
+        Assert.assertEquals(text, StandardCharsets.US_ASCII.decode(buffer).toString());
+
+        StringBuilder json = new StringBuilder();
+        snapshot.writeJson(json);
+        String content = json.toString();
+        Assert.assertTrue(content.startsWith("{\"timestamp\":" + snapshot.timestamp() + ",\"metrics\":{\"db_latency\":{\"type\":\"histogram\",\"count\":2,"));
+        Assert.assertTrue(content.contains("\"queue_size\":{\"type\":\"gauge\",\"value\":1.5}"));
+        Assert.assertTrue(content.contains("\"unknown\":{\"type\":\"gauge\",\"value\":null}}}"));
+    }
+
+    @Test
+    public void benchmarkExport() throws Exception {
+        Benchmarks.assumeEnabled();
+        MetricsRegistry registry = MetricsRegistry.of();
+        for (int i = 0; i < 1000; i++) {
+            registry.register("rate_" + i, MeasuredRate.of(Duration.of("1 s"))).increment();
+            registry.gauge("gauge_" + i, () -> 12.75);
+        }
+        MetricsRegistry.Snapshot snapshot = registry.collect();
+        StringBuilder builder = new StringBuilder(1 << 20);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        Benchmarks.allocation("writePrometheus(2000 series)", 50, () -> {
+            builder.setLength(0);
+            snapshot.writePrometheus(builder);
+            return builder.length();
+        });
+        Benchmarks.allocation("writeJson(ByteBuffer, 2000 series)", 50, () -> {
+            buffer.clear();
+            snapshot.writeJson(buffer);
+            return buffer.position();
+        });
+        Benchmarks.allocation("collect(2000 series)", 50, () -> registry.collect().size());
+        for (int i = 0; i < 100; i++) {
+            registry.histogram("histogram_" + i).record(i * 1000L);
+        }
+        Benchmarks.allocation("collect(2100 series, 100 histograms)", 50, () -> registry.collect().size());
+    }
+}
@@ -0,0 +1,80 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.MeasuredRate;
+import org.reactivecouchbase.common.RateLimiter;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiterTest {
+
+    @Test
+    public void testBurstThenThrottle() throws Exception {
+        RateLimiter limiter = RateLimiter.of(new MeasuredRate.Rate(BigDecimal.valueOf(10L), Duration.of("1 s")), 5L);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(limiter.tryAcquire());
+        }
+        Assert.assertFalse(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire(6L));
+        long start = System.nanoTime();
+        limiter.acquire();
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80L));
+        CompletableFuture<?> future = limiter.acquireAsync(2L);
+        Assert.assertFalse(future.isDone());
+        future.get(1, TimeUnit.SECONDS);
+        Assert.assertEquals(10.0, limiter.rate().perSecond(), 0.001);
+    }
+
+    @Test
+    public void testFullBurstWithFractionalPermitCost() {
+        // 333333333.33 ns per permit
+        RateLimiter limiter = RateLimiter.of(new MeasuredRate.Rate(BigDecimal.valueOf(3L), Duration.of("1 s")), 3L);
+        Assert.assertTrue(limiter.tryAcquire(3L));
+        Assert.assertFalse(limiter.tryAcquire());
+        RateLimiter single = RateLimiter.of(new MeasuredRate.Rate(BigDecimal.valueOf(3L), Duration.of("1 s")), 3L);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(single.tryAcquire());
+        }
+        Assert.assertFalse(single.tryAcquire());
+    }
+
+    @Test
+    public void testAcquireWaitsWhenInterrupted() {
+        RateLimiter limiter = RateLimiter.of(Duration.of("50 ms"), 1L);
+        Assert.assertTrue(limiter.tryAcquire());
+        Thread.currentThread().interrupt();
+        try {
+            long start = System.nanoTime();
+            Duration waited = limiter.acquire();
+            // the booked permit is waited for, the interrupt is kept for the caller
+            Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40L));
+            Assert.assertTrue(waited.toMillis() >= 40L);
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testAccountingUnderContention() throws Exception {
+        RateLimiter limiter = RateLimiter.of(Duration.of("1 ms"), 10L);
+        AtomicLong granted = new AtomicLong(0L);
+        long start = System.nanoTime();
+        Benchmarks.concurrent("RateLimiter.tryAcquire", 8, 200000, (thread, iterations) -> {
+            for (int i = 0; i < iterations; i++) {
+                if (limiter.tryAcquire()) {
+                    granted.incrementAndGet();
+                }
+            }
+        });
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // burst plus one permit per elapsed millisecond, never more
+        Assert.assertTrue(granted.get() <= 10L + elapsedMillis + 1L);
+        Assert.assertTrue(granted.get() >= 10L);
+    }
+}
@@ -0,0 +1,94 @@
+package org.reactivecouchbase.common.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.reactivecouchbase.common.Duration;
+import org.reactivecouchbase.common.RetryPolicy;
+import org.reactivecouchbase.functional.Try;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void testRetriesUntilSuccess() throws Exception {
+        AtomicInteger attempts = new AtomicInteger(0);
+        long start = System.nanoTime();
+        Try<String> result = RetryPolicy.of(5)
+                .withExponentialBackoff(Duration.of("10 ms"), Duration.of("1 s"))
+                .retry(() -> attempts.incrementAndGet() < 3 ? Try.<String>failure(new IOException("ko")) : Try.success("ok"))
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("ok", result.get());
+        Assert.assertEquals(3, attempts.get());
+        // 10 ms then 20 ms
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30L));
+    }
+
+    @Test
+    public void testStopsOnLastAttemptOrRejectedError() throws Exception {
+        AtomicInteger attempts = new AtomicInteger(0);
+        Try<String> exhausted = RetryPolicy.of(3)
+                .withDecorrelatedJitter(Duration.of("1 ms"), Duration.of("5 ms"))
+                .<String>apply(() -> {
+                    throw new IllegalStateException("attempt " + attempts.incrementAndGet());
+                })
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("attempt 3", exhausted.asFailure().get().getMessage());
+
+        attempts.set(0);
+        Try<String> rejected = RetryPolicy.of(3)
+                .withRetryOn(e -> e instanceof IOException)
+                .retry(() -> {
+                    attempts.incrementAndGet();
+                    return Try.<String>failure(new IllegalArgumentException("bad input"));
+                })
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertTrue(rejected.isFailure());
+        Assert.assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void testErrorFailsTheFuture() throws Exception {
+        CompletableFuture<Try<String>> future = RetryPolicy.of(3).retry(() -> {
+            throw new AssertionError("boom");
+        });
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Future should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof AssertionError);
+        }
+    }
+
+    @Test
+    public void testBackoffHoldsNoThread() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            RetryPolicy policy = RetryPolicy.of(4)
+                    .withDecorrelatedJitter(Duration.of("5 ms"), Duration.of("20 ms"))
+                    .withExecutor(executor);
+            List<CompletableFuture<Try<Integer>>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < 2000; i++) {
+                int index = i;
+                AtomicInteger attempts = new AtomicInteger(0);
+                futures.add(policy.retry(() -> attempts.incrementAndGet() == 3 ? Try.success(index) : Try.<Integer>failure(new IOException())));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Assert.assertEquals(Integer.valueOf(i), futures.get(i).get(10, TimeUnit.SECONDS).get());
+            }
+            // 2000 operations backing off on a single worker thread, far less than 2000 * 5 ms
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}